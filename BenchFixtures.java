@@ -0,0 +1,186 @@
+package Bench;
+
+import java.util.*;
+import static Common.Enums.Type.DeviceOperationType.TRUST;
+import Common.Device.Device;
+import Common.Device.Sub.Trigger;
+import Common.Enums.Compare;
+import Common.Enums.Type.DeviceOperationType;
+import Common.Enums.Type.EnvOperationType;
+import Common.EnvDynamics.EnvDynamics;
+import Common.Rule.Condition.Condition;
+import Common.Rule.Rule;
+import Common.Template.DevicePool;
+import Common.Template.EnvPool;
+import RuleChain.RuleChain;
+import Specification.Graph.Graph;
+import Specification.Specification;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+import StatePath.StatePath;
+
+/**
+ * Synthetic device pools, environment pools, specifications and rule chains for the benchmarks.
+ * Installing a fixture replaces the loaded pools and rule chain, so it shall not be used inside a campaign.
+ */
+public final class BenchFixtures {
+    /**
+     * Bounds of the synthetic environment variables.
+     */
+    private static final int LOWER = 0;
+    private static final int UPPER = 100;
+
+    public final StateLayout layout;
+    public final Specification specification;
+    public final List<Condition> conditions = new ArrayList<>();
+    public final List<Rule> rules = new ArrayList<>();
+    public final List<Trigger> triggers = new ArrayList<>();
+    public final StateNode root;
+
+    /**
+     * The monitor graph is a chain v0 -> v1 -> ... -> v{length}, the last vertex being the violating one.
+     */
+    private final int graphLength;
+
+    private BenchFixtures(int deviceCount, int envCount, int graphLength, int chainDepth) {
+        this.graphLength = graphLength;
+        HashMap<String, Device> devices = new HashMap<>();
+        for (int i = 0; i < deviceCount; i++) {
+            Device device = new Device();
+            device.setName("device" + i + "_");
+            device.setCountList(Collections.singletonList(1));
+            devices.put(device.getName(), device);
+        }
+        Set<EnvDynamics> envs = new HashSet<>();
+        for (int i = 0; i < envCount; i++) {
+            EnvDynamics dynamics = new EnvDynamics();
+            dynamics.setVariableName("env" + i);
+            dynamics.setLowerBound(String.valueOf(LOWER));
+            dynamics.setUpperBound(String.valueOf(UPPER));
+            envs.add(dynamics);
+        }
+        DevicePool.usedDevices = devices;
+        EnvPool.envDynamicsSet = envs;
+        layout = StateLayout.compile();
+
+        // One numeric condition per env variable and one trust condition per device, read through a device.
+        HashMap<String, Condition> idToCond = new HashMap<>();
+        for (int i = 0; i < envCount; i++) {
+            Condition condition = condition("device" + (i % deviceCount) + "_1", "env" + i,
+                    String.valueOf(UPPER * 3 / 4), Compare.EQUAL);
+            idToCond.put("a" + conditions.size(), condition);
+            conditions.add(condition);
+        }
+        for (int i = 0; i < deviceCount; i++) {
+            Condition condition = condition("device" + i + "_1", TRUST, "true", Compare.EQUAL);
+            idToCond.put("a" + conditions.size(), condition);
+            conditions.add(condition);
+        }
+
+        // Each condition is brought about by a rule whose conditions are the next ones, chainDepth layers deep.
+        HashMap<Condition, List<Rule>> ruleChain = new HashMap<>();
+        for (int i = 0; i < conditions.size(); i++) {
+            List<Condition> ruleConditions = new ArrayList<>();
+            for (int layer = 1; layer <= chainDepth; layer++) {
+                ruleConditions.add(conditions.get((i + layer) % conditions.size()));
+            }
+            Rule rule = new Rule();
+            rule.setConditions(ruleConditions);
+            rules.add(rule);
+            ruleChain.put(conditions.get(i), new ArrayList<>(Collections.singletonList(rule)));
+        }
+        RuleChain.ruleChain = ruleChain;
+
+        for (int i = 0; i < envCount; i++) {
+            Trigger trigger = new Trigger();
+            trigger.setAttribute("env" + i);
+            trigger.setValue(String.valueOf(UPPER / 2));
+            trigger.setRelation("=");
+            triggers.add(trigger);
+        }
+
+        specification = new Specification();
+        specification.setIdToCond(idToCond);
+        specification.setMonitorGraph(new ChainGraph(graphLength, idToCond.size()));
+
+        root = new StateNode(layout);
+        root.setGraphVer("v0");
+    }
+
+    /**
+     * Builds the fixture and installs its pools and rule chain.
+     */
+    public static BenchFixtures install(int deviceCount, int envCount, int graphLength, int chainDepth) {
+        return new BenchFixtures(Math.max(deviceCount, 1), Math.max(envCount, 1), graphLength, chainDepth);
+    }
+
+    /**
+     * Returns a path of the given length from the root, where each step changes one env value and one device
+     * trust and moves along the monitor graph.
+     */
+    public List<StateNode> path(int length, SplittableRandom random) {
+        List<StateNode> nodes = new ArrayList<>(length);
+        StateNode node = root;
+        for (int step = 0; step < length; step++) {
+            node = node.nextClone();
+            node.setVal(layout.envName(random.nextInt(layout.envCount())), EnvOperationType.Value,
+                    String.valueOf(LOWER + random.nextInt(UPPER - LOWER)));
+            node.setVal(layout.deviceId(random.nextInt(layout.deviceCount())), DeviceOperationType.Trust,
+                    String.valueOf(random.nextBoolean()));
+            node.setGraphVer("v" + Math.min(step * graphLength / Math.max(length, 1), graphLength - 1));
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    public List<StatePath> paths(int count, int length, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<StatePath> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StatePath path = new StatePath();
+            path.setStateNodes(path(length, random));
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    private static Condition condition(String deviceName, String deviceVar, String value, Compare compare) {
+        Condition condition = new Condition();
+        condition.setDeviceName(deviceName);
+        condition.setDeviceVar(deviceVar);
+        condition.setVariableVal(value);
+        condition.setCompare(compare);
+        condition.setCheckTrust(false);
+        condition.setCheckPrivacy(false);
+        return condition;
+    }
+
+    /**
+     * A chain-shaped monitor graph: v{i} -> v{i+1} labelled with two conditions, and a self-loop.
+     */
+    private static final class ChainGraph extends Graph {
+        private final int length;
+        private final int conditionCount;
+
+        private ChainGraph(int length, int conditionCount) {
+            this.length = length;
+            this.conditionCount = conditionCount;
+        }
+
+        @Override
+        public HashMap<String, String> findEdge(String graphVer) {
+            HashMap<String, String> labelNode = new HashMap<>();
+            int v = Integer.parseInt(graphVer.substring(1));
+            labelNode.put("true", graphVer);
+            if (v < length) {
+                labelNode.put("a" + v % conditionCount + "&&a" + (v + 1) % conditionCount, "v" + (v + 1));
+            }
+            return labelNode;
+        }
+
+        @Override
+        public int getVerDist(String graphVer) {
+            return length - Integer.parseInt(graphVer.substring(1));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package Bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which adds the allocation rate (gc.alloc.rate.norm, bytes per
+ * operation) to the throughput of each benchmark.
+ * An optional argument restricts the run to the benchmarks matching it, e.g. "StateNodeBenchmark.nextClone".
+ * The same report is available from the JMH uber-jar with: java -jar benchmarks.jar -prof gc
+ * Before the benchmarks, the bytes allocated per path step are printed with every instance copied on each step,
+ * as the state nodes used to do, and with instances shared until written, for the device counts of
+ * {@link StateNodeBenchmark}.
+ */
+public class BenchmarkMain {
+    private static final int[] PROBE_DEVICE_COUNTS = {4, 16, 64};
+    private static final int PROBE_ENV_COUNT = 8;
+    private static final int PROBE_STEPS = 100_000;
+
+    public static void main(String[] args) throws RunnerException {
+        for (int deviceCount : PROBE_DEVICE_COUNTS) {
+            BenchFixtures fixtures = BenchFixtures.install(deviceCount, PROBE_ENV_COUNT, 8, 3);
+            System.out.println(CloneAllocationProbe.report(fixtures.root, PROBE_STEPS));
+        }
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "Bench\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,56 @@
+package Bench;
+
+import java.lang.management.ManagementFactory;
+import static Common.Enums.Type.DeviceOperationType.TRUST;
+import Common.Enums.Type.DeviceOperationType;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+
+/**
+ * Measures the bytes allocated per path step, once with instances shared between consecutive nodes and once
+ * with every instance copied on each step as the state nodes used to do.
+ */
+public final class CloneAllocationProbe {
+    private static final int WARM_UP_STEPS = 10_000;
+
+    private CloneAllocationProbe() {
+    }
+
+    /**
+     * Runs both modes from the given root node and returns a one-line report.
+     * Each step clones the previous node and rewrites the trust of one device, the usual shape of a rule action.
+     * @param root The first node of the path, built on the loaded pools.
+     * @param steps The number of measured steps.
+     */
+    public static String report(StateNode root, int steps) {
+        run(root, WARM_UP_STEPS, true);
+        run(root, WARM_UP_STEPS, false);
+        double eager = (double) run(root, steps, true) / steps;
+        double shared = (double) run(root, steps, false) / steps;
+        return String.format("devices=%d envs=%d bytes/step: copy-all=%.1f shared=%.1f",
+                root.getLayout().deviceCount(), root.getLayout().envCount(), eager, shared);
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread over the given number of steps.
+     */
+    private static long run(StateNode root, int steps, boolean copyAll) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        StateLayout layout = root.getLayout();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        StateNode node = root;
+        for (int step = 0; step < steps; step++) {
+            StateNode next = node.nextClone();
+            if (copyAll) {
+                next.materializeAll();
+            }
+            if (layout.deviceCount() > 0) {
+                String id = layout.deviceId(step % layout.deviceCount());
+                next.setVal(id, DeviceOperationType.Trust, next.findVar(id, TRUST, false, false));
+            }
+            node = next;
+        }
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
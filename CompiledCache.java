@@ -0,0 +1,436 @@
+package Core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import Common.Enums.Compare;
+import Common.Rule.Condition.Condition;
+import Common.Rule.Rule;
+import Mutate.MonitorTable;
+import Specification.Graph.Graph;
+import Specification.Specification;
+import StatePath.CondEvaluator;
+import StatePath.StateLayout;
+
+/**
+ * A directory of compiled specifications and rule chains, so that a batch of campaigns over the same
+ * integrations and properties builds each monitor graph and rule chain once.
+ * An artifact holds the conditions, the labelled conditions of the specification, the monitor graph explored
+ * from its initial vertices with the distance of each vertex, and the rule-chain predecessor index. It is stored
+ * under the SHA-256 of the inputs it was compiled from, e.g. the model and property files, and read back through
+ * a memory-mapped buffer.
+ * <pre>
+ * magic, version, key (32 bytes)
+ * conditions:   count, then per condition: device name, device var, value, compare, check trust, check privacy
+ * specification: count, then per labelled condition: label, condition
+ * monitor graph: vertex count, then per vertex: name, distance, edge count, then per edge: label, target or -1
+ * rule chain:    rule count, then per rule: its conditions; count, then per condition: condition, its rules
+ * </pre>
+ * Counts and indexes are ints, strings their UTF-8 length (-1 for null) followed by the bytes.
+ * A loaded monitor graph only knows the vertices reachable from the initial ones, and loaded rules only their
+ * conditions, which is what the distance engine reads.
+ * A loaded artifact also builds the monitor table for the layout of the pools in one go, and an unreadable file
+ * is deleted and reported as missing.
+ */
+public class CompiledCache {
+    /**
+     * The version of the file format; files of another version are ignored and compiled again.
+     */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x46434131; // FCA1
+    private static final String SUFFIX = ".fca";
+
+    private final Path dir;
+
+    public CompiledCache(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Returns the SHA-256 of the inputs, each prefixed with its length so that their boundaries count.
+     */
+    public static byte[] key(byte[]... inputs) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(VERSION).array());
+        for (byte[] input : inputs) {
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(input.length).array());
+            digest.update(input);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the SHA-256 of the contents of the input files.
+     */
+    public static byte[] key(Path... inputs) throws IOException {
+        byte[][] contents = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            contents[i] = Files.readAllBytes(inputs[i]);
+        }
+        return key(contents);
+    }
+
+    public Path fileOf(byte[] key) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : key) {
+            sb.append(String.format("%02x", b));
+        }
+        return dir.resolve(sb + SUFFIX);
+    }
+
+    /**
+     * Compiles the specification and rule chain into an artifact stored under the key.
+     * @param initialVertices The vertices the monitor starts in, from which its graph is explored.
+     */
+    public void store(byte[] key, Specification specification, Collection<String> initialVertices,
+                      Map<Condition, List<Rule>> ruleChain) throws IOException {
+        Map<Condition, Integer> condIds = new IdentityHashMap<>();
+        List<Condition> conditions = new ArrayList<>();
+        // Sorted so that the same inputs give the same file.
+        Map<String, Condition> idToCond = new TreeMap<>(specification.getIdToCond());
+        for (Condition condition : idToCond.values()) {
+            condId(condition, condIds, conditions);
+        }
+        Map<Rule, Integer> ruleIds = new IdentityHashMap<>();
+        List<Rule> rules = new ArrayList<>();
+        for (Map.Entry<Condition, List<Rule>> entry : ruleChain.entrySet()) {
+            condId(entry.getKey(), condIds, conditions);
+            for (Rule rule : entry.getValue()) {
+                if (!ruleIds.containsKey(rule)) {
+                    ruleIds.put(rule, rules.size());
+                    rules.add(rule);
+                    for (Condition condition : rule.getConditions()) {
+                        condId(condition, condIds, conditions);
+                    }
+                }
+            }
+        }
+
+        Path file = fileOf(key);
+        Path tmp = file.resolveSibling("." + file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(key);
+            out.writeInt(conditions.size());
+            for (Condition condition : conditions) {
+                writeString(out, condition.getDeviceName());
+                writeString(out, condition.getDeviceVar());
+                writeString(out, condition.getVariableVal());
+                writeString(out, condition.getCompare() == null ? null : condition.getCompare().name());
+                out.writeByte(bool(condition.getCheckTrust()));
+                out.writeByte(bool(condition.getCheckPrivacy()));
+            }
+            out.writeInt(idToCond.size());
+            for (Map.Entry<String, Condition> entry : idToCond.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(condIds.get(entry.getValue()));
+            }
+            writeGraph(out, specification.getMonitorGraph(), initialVertices);
+            out.writeInt(rules.size());
+            for (Rule rule : rules) {
+                out.writeInt(rule.getConditions().size());
+                for (Condition condition : rule.getConditions()) {
+                    out.writeInt(condIds.get(condition));
+                }
+            }
+            out.writeInt(ruleChain.size());
+            for (Map.Entry<Condition, List<Rule>> entry : ruleChain.entrySet()) {
+                out.writeInt(condIds.get(entry.getKey()));
+                out.writeInt(entry.getValue().size());
+                for (Rule rule : entry.getValue()) {
+                    out.writeInt(ruleIds.get(rule));
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the artifact stored under the key. A file which is not an artifact of this version, or is truncated
+     * or corrupt, is deleted so that the inputs are compiled and stored again.
+     * @return The artifact, or null if there is no readable one.
+     */
+    public Compiled load(byte[] key) {
+        Path file = fileOf(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            ByteBuffer in;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // The mapping stays valid once the channel is closed.
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            return read(in, key);
+        } catch (IOException | RuntimeException e) {
+            // A truncated file underflows the buffer; a corrupt one reads counts and indexes out of range.
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // Another worker may hold or have replaced it; it is read again next time.
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @throws IOException If the buffer holds no artifact of this version under the key.
+     */
+    private static Compiled read(ByteBuffer in, byte[] key) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a compiled artifact");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported compiled artifact version " + version);
+        }
+        byte[] stored = new byte[key.length];
+        in.get(stored);
+        if (!Arrays.equals(stored, key)) {
+            throw new IOException("Compiled artifact of other inputs");
+        }
+
+        Condition[] conditions = new Condition[in.getInt()];
+        for (int c = 0; c < conditions.length; c++) {
+            Condition condition = new Condition();
+            condition.setDeviceName(readString(in));
+            condition.setDeviceVar(readString(in));
+            condition.setVariableVal(readString(in));
+            String compare = readString(in);
+            condition.setCompare(compare == null ? null : Compare.valueOf(compare));
+            condition.setCheckTrust(bool(in.get()));
+            condition.setCheckPrivacy(bool(in.get()));
+            conditions[c] = condition;
+        }
+        HashMap<String, Condition> idToCond = new HashMap<>();
+        for (int n = in.getInt(); n > 0; n--) {
+            String id = readString(in);
+            idToCond.put(id, conditions[in.getInt()]);
+        }
+        Specification specification = new Specification();
+        specification.setIdToCond(idToCond);
+        CompiledGraph graph = readGraph(in);
+        specification.setMonitorGraph(graph);
+
+        Rule[] rules = new Rule[in.getInt()];
+        for (int r = 0; r < rules.length; r++) {
+            List<Condition> ruleConditions = new ArrayList<>();
+            for (int n = in.getInt(); n > 0; n--) {
+                ruleConditions.add(conditions[in.getInt()]);
+            }
+            rules[r] = new Rule();
+            rules[r].setConditions(ruleConditions);
+        }
+        Map<Condition, List<Rule>> ruleChain = new LinkedHashMap<>();
+        for (int n = in.getInt(); n > 0; n--) {
+            Condition condition = conditions[in.getInt()];
+            List<Rule> predecessors = new ArrayList<>();
+            for (int m = in.getInt(); m > 0; m--) {
+                predecessors.add(rules[in.getInt()]);
+            }
+            ruleChain.put(condition, predecessors);
+        }
+        if (in.hasRemaining()) {
+            throw new IOException("Trailing bytes after the compiled artifact");
+        }
+        return new Compiled(specification, ruleChain, graph.names);
+    }
+
+    /**
+     * Writes the vertices reachable from the initial ones, in the order they are found.
+     */
+    private static void writeGraph(DataOutputStream out, Graph graph, Collection<String> initialVertices)
+            throws IOException {
+        List<String> vertices = new ArrayList<>();
+        Map<String, Integer> ids = new HashMap<>();
+        List<HashMap<String, String>> edges = new ArrayList<>();
+        Deque<String> queue = new ArrayDeque<>();
+        for (String vertex : initialVertices) {
+            if (vertex != null && !ids.containsKey(vertex)) {
+                ids.put(vertex, vertices.size());
+                vertices.add(vertex);
+                queue.add(vertex);
+            }
+        }
+        while (!queue.isEmpty()) {
+            HashMap<String, String> labelNode = graph.findEdge(queue.poll());
+            edges.add(labelNode);
+            if (labelNode == null) {
+                continue;
+            }
+            for (String target : labelNode.values()) {
+                if (target != null && !ids.containsKey(target)) {
+                    ids.put(target, vertices.size());
+                    vertices.add(target);
+                    queue.add(target);
+                }
+            }
+        }
+        out.writeInt(vertices.size());
+        for (int v = 0; v < vertices.size(); v++) {
+            writeString(out, vertices.get(v));
+            out.writeInt(graph.getVerDist(vertices.get(v)));
+            HashMap<String, String> labelNode = edges.get(v);
+            out.writeInt(labelNode == null ? -1 : labelNode.size());
+            if (labelNode != null) {
+                for (Map.Entry<String, String> edge : new TreeMap<>(labelNode).entrySet()) {
+                    writeString(out, edge.getKey());
+                    out.writeInt(edge.getValue() == null ? -1 : ids.get(edge.getValue()));
+                }
+            }
+        }
+    }
+
+    private static CompiledGraph readGraph(ByteBuffer in) {
+        int count = in.getInt();
+        String[] names = new String[count];
+        int[] verDists = new int[count];
+        String[][] labels = new String[count][];
+        int[][] targets = new int[count][];
+        for (int v = 0; v < count; v++) {
+            names[v] = readString(in);
+            verDists[v] = in.getInt();
+            int edgeCount = in.getInt();
+            if (edgeCount < 0) {
+                continue;
+            }
+            labels[v] = new String[edgeCount];
+            targets[v] = new int[edgeCount];
+            for (int e = 0; e < edgeCount; e++) {
+                labels[v][e] = readString(in);
+                targets[v][e] = in.getInt();
+                if (targets[v][e] >= count) {
+                    throw new IllegalArgumentException("Edge to an unknown vertex " + targets[v][e]);
+                }
+            }
+        }
+        return new CompiledGraph(names, verDists, labels, targets);
+    }
+
+    private static void condId(Condition condition, Map<Condition, Integer> condIds, List<Condition> conditions) {
+        if (!condIds.containsKey(condition)) {
+            condIds.put(condition, conditions.size());
+            conditions.add(condition);
+        }
+    }
+
+    private static int bool(Boolean value) {
+        return value == null ? -1 : value ? 1 : 0;
+    }
+
+    private static Boolean bool(byte value) {
+        return value < 0 ? null : value == 1;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A specification and rule chain loaded from the cache.
+     */
+    public static final class Compiled {
+        private final Specification specification;
+        private final Map<Condition, List<Rule>> ruleChain;
+        private final String[] vertices;
+
+        private Compiled(Specification specification, Map<Condition, List<Rule>> ruleChain, String[] vertices) {
+            this.specification = specification;
+            this.ruleChain = ruleChain;
+            this.vertices = vertices;
+        }
+
+        /**
+         * Returns the monitor table of the specification with every stored vertex already explored and every
+         * edge label compiled against the layout, so that scoring starts without building it.
+         * The conditions are compiled here rather than stored, as their slots depend on the device and
+         * environment variable pools, which are not cached.
+         */
+        public MonitorTable monitorTable(StateLayout layout) {
+            MonitorTable table = new MonitorTable(specification, layout,
+                    CondEvaluator.compileAll(layout, specification, ruleChain));
+            for (String vertex : vertices) {
+                table.vertexId(vertex);
+            }
+            return table;
+        }
+
+        public Specification getSpecification() {
+            return specification;
+        }
+
+        public Map<Condition, List<Rule>> getRuleChain() {
+            return ruleChain;
+        }
+    }
+
+    /**
+     * A monitor graph answering from the tables of the explored vertices. A vertex outside them has no edges
+     * and cannot reach the violating vertex.
+     */
+    private static final class CompiledGraph extends Graph {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final String[] names;
+        private final int[] verDists;
+        private final String[][] labels;
+        private final int[][] targets;
+
+        private CompiledGraph(String[] names, int[] verDists, String[][] labels, int[][] targets) {
+            this.names = names;
+            this.verDists = verDists;
+            this.labels = labels;
+            this.targets = targets;
+            for (int v = 0; v < names.length; v++) {
+                ids.put(names[v], v);
+            }
+        }
+
+        @Override
+        public HashMap<String, String> findEdge(String graphVer) {
+            Integer v = ids.get(graphVer);
+            if (v == null || labels[v] == null) {
+                return null;
+            }
+            HashMap<String, String> labelNode = new HashMap<>();
+            for (int e = 0; e < labels[v].length; e++) {
+                labelNode.put(labels[v][e], targets[v][e] < 0 ? null : names[targets[v][e]]);
+            }
+            return labelNode;
+        }
+
+        @Override
+        public int getVerDist(String graphVer) {
+            Integer v = ids.get(graphVer);
+            return v == null ? Integer.MAX_VALUE : verDists[v];
+        }
+    }
+}
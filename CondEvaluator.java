@@ -0,0 +1,216 @@
+package StatePath;
+
+import java.util.*;
+import static Common.Enums.Compare.compare;
+import static Common.Enums.PrimitiveCompare.toDouble;
+import Common.Enums.Compare;
+import Common.Enums.PrimitiveCompare;
+import Common.Rule.Condition.Condition;
+import Common.Rule.Rule;
+import Specification.Specification;
+import Util.Metrics;
+
+/**
+ * A condition compiled against a state layout: the location it reads, its target already parsed and the
+ * comparison already chosen, so that judging a node and measuring its distance need no parsing or exceptions.
+ */
+public final class CondEvaluator {
+    /**
+     * Dense id of the evaluator within its layout.
+     */
+    private final int id;
+
+    private final Condition condition;
+
+    private final VarSlot slot;
+
+    private final Compare compare;
+
+    /**
+     * The target value as written in the condition.
+     */
+    private final String target;
+
+    /**
+     * Whether the target is numeric, and its value if it is.
+     */
+    private final boolean numeric;
+    private final double dTarget;
+
+    /**
+     * Whether the target is a boolean, and its value if it is.
+     */
+    private final boolean logical;
+    private final boolean bTarget;
+
+    /**
+     * The outcomes of a numeric comparison which satisfy the condition, see {@link PrimitiveCompare#accept}.
+     */
+    private final int accept;
+
+    private final boolean judgeLE;
+    private final boolean judgeGE;
+    private final boolean isEqual;
+    private final boolean isNoEqual;
+
+    /**
+     * Whether the variable is an environment variable with numeric bounds, and the bounds if it is.
+     */
+    private final boolean bounded;
+    private final double up;
+    private final double low;
+
+    CondEvaluator(int id, Condition condition, VarSlot slot, StateLayout layout) {
+        this.id = id;
+        this.condition = condition;
+        this.slot = slot;
+        this.compare = condition.getCompare();
+        this.target = condition.getVariableVal();
+        this.dTarget = toDouble(target);
+        this.numeric = !Double.isNaN(dTarget);
+        this.logical = "true".equalsIgnoreCase(target) || "false".equalsIgnoreCase(target);
+        this.bTarget = "true".equalsIgnoreCase(target);
+        this.accept = PrimitiveCompare.accept(compare);
+        this.judgeLE = compare != null && Compare.judgeLE(compare);
+        this.judgeGE = compare != null && Compare.judgeGE(compare);
+        this.isEqual = Compare.EQUAL.equals(compare);
+        this.isNoEqual = Compare.NO_EQUAL.equals(compare);
+        double dUp = slot.env < 0 ? Double.NaN : layout.envUpper(slot.env);
+        double dLow = slot.env < 0 ? Double.NaN : layout.envLower(slot.env);
+        this.bounded = !Double.isNaN(dUp) && !Double.isNaN(dLow);
+        this.up = dUp;
+        this.low = dLow;
+    }
+
+    /**
+     * Compiles every condition of the specification and of the rule chain against the layout.
+     * @return The evaluators keyed by condition.
+     */
+    public static Map<Condition, CondEvaluator> compileAll(StateLayout layout, Specification specification,
+                                                         Map<Condition, List<Rule>> ruleChain) {
+        Map<Condition, CondEvaluator> evaluators = new HashMap<>();
+        if (specification != null && specification.getIdToCond() != null) {
+            for (Condition condition : specification.getIdToCond().values()) {
+                evaluators.put(condition, layout.evaluatorOf(condition));
+            }
+        }
+        if (ruleChain != null) {
+            for (Map.Entry<Condition, List<Rule>> entry : ruleChain.entrySet()) {
+                evaluators.put(entry.getKey(), layout.evaluatorOf(entry.getKey()));
+                for (Rule rule : entry.getValue()) {
+                    for (Condition condition : rule.getConditions()) {
+                        evaluators.put(condition, layout.evaluatorOf(condition));
+                    }
+                }
+            }
+        }
+        return evaluators;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+
+    public VarSlot getSlot() {
+        return slot;
+    }
+
+    /**
+     * Judges the condition against the state node.
+     */
+    public boolean judge(StateNode stateNode) {
+        if (numeric) {
+            double dAns = numericValue(stateNode);
+            if (!Double.isNaN(dAns)) {
+                return PrimitiveCompare.compare(dAns, dTarget, accept);
+            }
+        } else if (logical && slot.kind == VarSlot.ATTACK) {
+            return PrimitiveCompare.compare(stateNode.isDeviceAttacked(slot.device), bTarget, compare);
+        }
+        String ans = stateNode.findVar(slot);
+        if (ans == null || ans.isEmpty()) {
+            // illegal input
+            return false;
+        }
+        return compare(ans, target, compare);
+    }
+
+    /**
+     * Reads the variable as a double, NaN if it is missing or not a number.
+     * Environment variables are read from the values the state node keeps parsed.
+     */
+    private double numericValue(StateNode stateNode) {
+        return slot.kind == VarSlot.ENV ? stateNode.envValue(slot.env) : toDouble(stateNode.findVar(slot));
+    }
+
+    /**
+     * Judges the condition over two consecutive state nodes: it also holds when a numeric value has passed the
+     * target of an equality between the two nodes.
+     */
+    public boolean judgeContinue(StateNode stateNode, StateNode preNode) {
+        if (judge(stateNode)) {
+            return true;
+        }
+        if (!isEqual || !numeric) {
+            // Continuous judgment is only required for double types.
+            return false;
+        }
+        double dCur = numericValue(stateNode);
+        double dPre = numericValue(preNode);
+        if (Double.isNaN(dCur) || Double.isNaN(dPre)) {
+            Metrics.count(Metrics.Counter.CONTINUE_COND_FALLBACK);
+        }
+        return dCur > dTarget && dPre < dTarget || dCur < dTarget && dPre > dTarget;
+    }
+
+    /**
+     * Measures the distance of the state node to fulfilling the condition.
+     */
+    public double dist(StateNode stateNode) {
+        double dNowVal = numeric ? numericValue(stateNode) : Double.NaN;
+        if (!Double.isNaN(dNowVal) && (slot.env < 0 || bounded)) {
+            return slot.env >= 0 ? distDouble(dNowVal) : 0;
+        }
+        Metrics.count(Metrics.Counter.COND_DIST_FALLBACK);
+        String nowVal = stateNode.findVar(slot);
+        if (nowVal == null) {
+            return 0;
+        }
+        return (isEqual && nowVal.equals(target)) || (isNoEqual && !nowVal.equals(target)) ? 1 : 0;
+    }
+
+    /**
+     * Measures the distance to fulfilling the condition of a bounded numeric env variable moving from its
+     * current value to a projected one: an equality whose target lies between them counts as fulfilled,
+     * otherwise the distance is the one at the projected value. 0 for any other condition.
+     */
+    public double projectedDist(double dNowVal, double dProjected) {
+        if (slot.kind != VarSlot.ENV || !numeric || !bounded || Double.isNaN(dProjected)) {
+            return 0;
+        }
+        if (isEqual && !Double.isNaN(dNowVal)
+                && (dNowVal <= dTarget && dProjected >= dTarget || dNowVal >= dTarget && dProjected <= dTarget)) {
+            return 1;
+        }
+        return distDouble(dProjected);
+    }
+
+    /**
+     * Calculates the distance for a condition with double type values.
+     */
+    private double distDouble(double dNowVal) {
+        if (dTarget < dNowVal && judgeLE) {
+            return 1 - Math.abs(dNowVal - dTarget) / (up - dTarget);
+        } else if (dTarget > dNowVal && judgeGE) {
+            return 1 - Math.abs(dNowVal - dTarget) / (dTarget - low);
+        } else if ((dTarget != dNowVal) && !isEqual) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+}
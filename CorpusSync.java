@@ -0,0 +1,310 @@
+package Core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import StatePath.StateNode;
+import StatePath.StatePath;
+import StatePath.StateCodec;
+import StatePath.VisitedStates;
+
+/**
+ * Synchronizes the corpus of worker processes fuzzing the same integration through a shared local directory,
+ * in the manner of AFL's -M/-S sync: each worker publishes its best paths and the monitor vertices it reached
+ * under its own subdirectory, and periodically imports what its peers have published since the last time.
+ * <pre>
+ * syncDir/worker/queue/000000000042_0.250000.path   a path in the state codec encoding, and its distance
+ * syncDir/worker/vertices                          the monitor vertices reached, one per line
+ * </pre>
+ * Files are written under a temporary name and renamed, so a peer never reads a partial path.
+ * Imported paths are never published again, and a path is only imported if it reaches a state and vertex this
+ * worker has not visited, so paths do not bounce between the workers. A path farther than asked for is still
+ * imported if it reaches a vertex neither this worker nor the peers read so far had reached.
+ */
+public class CorpusSync {
+    private static final String QUEUE = "queue";
+    private static final String VERTICES = "vertices";
+    private static final String SUFFIX = ".path";
+
+    /**
+     * How long after a listing a change of a peer's queue may still not show in its modification time.
+     */
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private final Path syncDir;
+    private final String workerId;
+    private final Path queueDir;
+    private final Path verticesFile;
+    private final FuzzContext context;
+
+    private long nextSeq;
+
+    /**
+     * The vertices reached by this worker or its peers, and those already published.
+     */
+    private final Set<String> reachedVertices = new LinkedHashSet<>();
+    private final Set<String> exportedVertices = new HashSet<>();
+
+    /**
+     * Per peer: the next path sequence number to import, the modification time of its queue when it was last
+     * listed, once it is old enough to be trusted, and how far its vertices file has been read.
+     */
+    private final Map<String, Long> peerSeqs = new HashMap<>();
+    private final Map<String, Long> peerQueueMtimes = new HashMap<>();
+    private final Map<String, Long> peerVertexOffsets = new HashMap<>();
+
+    /**
+     * The states and vertices of the paths published or imported, and the imported paths still candidates.
+     */
+    private final VisitedStates visited = new VisitedStates();
+    private final Set<StatePath> importedPaths = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public CorpusSync(Path syncDir, String workerId, FuzzContext context) throws IOException {
+        this.syncDir = syncDir;
+        this.workerId = workerId;
+        this.context = context;
+        // Paths are published as the writes which built their nodes.
+        context.setJournaling(true);
+        this.queueDir = syncDir.resolve(workerId).resolve(QUEUE);
+        this.verticesFile = syncDir.resolve(workerId).resolve(VERTICES);
+        Files.createDirectories(queueDir);
+        try (Stream<Path> files = Files.list(queueDir)) {
+            // Continue the numbering of a previous run of the worker.
+            nextSeq = files.mapToLong(CorpusSync::seqOf).max().orElse(-1) + 1;
+        }
+    }
+
+    /**
+     * Publishes the path with its distance.
+     * @return Whether it was published; a path imported from a peer or which cannot be rebuilt from its record
+     * is not.
+     */
+    public synchronized boolean exportPath(StatePath statePath, double dist) throws IOException {
+        if (importedPaths.contains(statePath)) {
+            return false;
+        }
+        byte[] record = StateCodec.encodePath(statePath.getStateNodes(), context.getLayout());
+        if (record == null) {
+            return false;
+        }
+        // %g keeps the name short for any distance, including Double.MAX_VALUE for an unreached vertex.
+        String name = String.format(Locale.ROOT, "%012d_%.6g%s", nextSeq++, dist, SUFFIX);
+        Path tmp = queueDir.resolve("." + name + ".tmp");
+        Files.write(tmp, record);
+        Files.move(tmp, queueDir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        visited.visitPath(statePath);
+        for (StateNode stateNode : statePath.getStateNodes()) {
+            reachVertex(stateNode.getGraphVer());
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the best paths of an election which were not imported from a peer, closest first.
+     * @return The number of paths published.
+     */
+    public int exportBest(List<StatePath> statePaths, double[] dists, int count) throws IOException {
+        synchronized (this) {
+            // Forget the imported paths which are no longer candidates.
+            Set<StatePath> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+            candidates.addAll(statePaths);
+            importedPaths.retainAll(candidates);
+        }
+        Integer[] order = new Integer[statePaths.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> dists[i]));
+        int exported = 0;
+        for (int rank = 0; rank < order.length && exported < count; rank++) {
+            if (exportPath(statePaths.get(order[rank]), dists[order[rank]])) {
+                exported++;
+            }
+        }
+        flushVertices();
+        return exported;
+    }
+
+    /**
+     * Records a monitor vertex reached by this worker, to be published on the next flush.
+     */
+    public synchronized void reachVertex(String graphVer) {
+        if (graphVer != null) {
+            reachedVertices.add(graphVer);
+        }
+    }
+
+    /**
+     * Appends the vertices reached since the last flush, and not already published by a peer, to the
+     * worker's vertices file.
+     */
+    public synchronized void flushVertices() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String graphVer : reachedVertices) {
+            if (exportedVertices.add(graphVer)) {
+                sb.append(graphVer).append('\n');
+            }
+        }
+        if (sb.length() > 0) {
+            Files.write(verticesFile, sb.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Returns the monitor vertices reached by this worker and its peers so far.
+     */
+    public synchronized Set<String> getReachedVertices() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(reachedVertices));
+    }
+
+    /**
+     * Imports the paths the peers published since the last import whose distance is at most maxDist, or which
+     * reach a vertex new to this worker, into the candidate paths of the context, and the vertices they reached.
+     * A path which only visits states and vertices already visited here is skipped.
+     * @return The imported paths.
+     */
+    public synchronized List<StatePath> importPeers(double maxDist) throws IOException {
+        List<StatePath> imported = new ArrayList<>();
+        List<Path> peers = new ArrayList<>();
+        try (Stream<Path> dirs = Files.list(syncDir)) {
+            dirs.filter(Files::isDirectory).forEach(peers::add);
+        }
+        Collections.sort(peers);
+        for (Path peer : peers) {
+            String peerId = peer.getFileName().toString();
+            if (!peerId.equals(workerId)) {
+                Set<String> newVertices = importVertices(peerId, peer.resolve(VERTICES));
+                importPaths(peerId, peer.resolve(QUEUE), maxDist, newVertices, imported);
+            }
+        }
+        context.getStatePaths().addAll(imported);
+        return imported;
+    }
+
+    /**
+     * Imports the paths of the peer from its high-water mark on. The queue is only listed again once its
+     * modification time has changed, and the zero-padded sequence numbers order the names, so the files below
+     * the mark are skipped without parsing their names.
+     * @param newVertices The vertices the peer reached which this worker had not; a path farther than maxDist
+     * is only decoded, and imported, if it reaches one of them.
+     */
+    private void importPaths(String peerId, Path peerQueue, double maxDist, Set<String> newVertices,
+                             List<StatePath> imported) throws IOException {
+        if (!Files.isDirectory(peerQueue)) {
+            return;
+        }
+        long listedAt = System.currentTimeMillis();
+        long mtime = Files.getLastModifiedTime(peerQueue).toMillis();
+        Long listedMtime = peerQueueMtimes.get(peerId);
+        if (listedMtime != null && listedMtime == mtime) {
+            return;
+        }
+        long from = peerSeqs.getOrDefault(peerId, 0L);
+        String mark = String.format(Locale.ROOT, "%012d", from);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(peerQueue)) {
+            list.filter(file -> file.getFileName().toString().compareTo(mark) >= 0 && seqOf(file) >= from)
+                    .forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(CorpusSync::seqOf));
+        long next = from;
+        for (Path file : files) {
+            next = seqOf(file) + 1;
+            boolean far = distOf(file) > maxDist;
+            if (far && newVertices.isEmpty()) {
+                continue;
+            }
+            List<StateNode> stateNodes;
+            try {
+                stateNodes = StateCodec.decodePath(ByteBuffer.wrap(Files.readAllBytes(file)), context.getLayout());
+            } catch (RuntimeException e) {
+                // A path of another layout or version, or a corrupted file; the peers keep running, so does this worker.
+                continue;
+            }
+            if (far && stateNodes.stream().noneMatch(stateNode -> newVertices.contains(stateNode.getGraphVer()))) {
+                continue;
+            }
+            StatePath statePath = new StatePath();
+            statePath.setStateNodes(stateNodes);
+            if (!visited.visitPath(statePath)) {
+                continue;
+            }
+            importedPaths.add(statePath);
+            imported.add(statePath);
+        }
+        peerSeqs.put(peerId, next);
+        if (listedAt - mtime >= MTIME_GRANULARITY_MILLIS) {
+            peerQueueMtimes.put(peerId, mtime);
+        } else {
+            // A file renamed in later within the same tick would not change the time, so list again next time.
+            peerQueueMtimes.remove(peerId);
+        }
+    }
+
+    /**
+     * Reads the vertices the peer published since the last import.
+     * @return Those which neither this worker nor the peers read so far had reached.
+     */
+    private Set<String> importVertices(String peerId, Path peerVertices) throws IOException {
+        Set<String> newVertices = new HashSet<>();
+        if (!Files.exists(peerVertices)) {
+            return newVertices;
+        }
+        long offset = peerVertexOffsets.getOrDefault(peerId, 0L);
+        byte[] bytes = Files.readAllBytes(peerVertices);
+        int end = bytes.length;
+        while (end > offset && bytes[end - 1] != '\n') {
+            end--; // A line still being written is read next time.
+        }
+        if (end <= offset) {
+            return newVertices;
+        }
+        String lines = new String(bytes, (int) offset, (int) (end - offset), StandardCharsets.UTF_8);
+        for (String graphVer : lines.split("\n")) {
+            if (!graphVer.isEmpty()) {
+                if (reachedVertices.add(graphVer)) {
+                    newVertices.add(graphVer);
+                }
+                exportedVertices.add(graphVer); // Already published by the peer
+            }
+        }
+        peerVertexOffsets.put(peerId, (long) end);
+        return newVertices;
+    }
+
+    /**
+     * Returns whether the path was imported from a peer.
+     */
+    public synchronized boolean isImported(StatePath statePath) {
+        return importedPaths.contains(statePath);
+    }
+
+    /**
+     * Returns the sequence number in the file name, or -1 if it is not a published path.
+     */
+    private static long seqOf(Path file) {
+        String name = file.getFileName().toString();
+        int sep = name.indexOf('_');
+        if (!name.endsWith(SUFFIX) || sep <= 0 || name.startsWith(".")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, sep));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static double distOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Double.parseDouble(name.substring(name.indexOf('_') + 1, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Double.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package Mutate;
+
+import java.util.*;
+import StatePath.StateNode;
+import StatePath.StatePath;
+import Util.CoverageMap;
+
+/**
+ * Keeps the behaviours of the candidate paths between elections, so that only the nodes appended or modified
+ * since the last election are covered again. Nodes are keyed as in {@link DistCache.PathEntry}.
+ * The map only grows, so the behaviours of a path found covered stay covered, and only those recorded since are
+ * checked against the map again.
+ */
+class CoverageCache {
+    private final CoverageMap map;
+    private final Map<StatePath, Entry> entries = new IdentityHashMap<>();
+
+    /**
+     * The number of times the map had been cleared when the paths were checked.
+     */
+    private int clears;
+
+    CoverageCache(CoverageMap map) {
+        this.map = map;
+        this.clears = map.clears();
+    }
+
+    /**
+     * Returns whether the cache was filled against the map.
+     */
+    boolean serves(CoverageMap map) {
+        return this.map == map;
+    }
+
+    /**
+     * Drops the paths which are no longer candidates.
+     */
+    synchronized void retain(List<StatePath> statePaths) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Set<StatePath> current = Collections.newSetFromMap(new IdentityHashMap<>());
+        current.addAll(statePaths);
+        entries.keySet().retainAll(current);
+    }
+
+    synchronized void forget(StatePath statePath) {
+        entries.remove(statePath);
+    }
+
+    /**
+     * Returns whether the path covers a behaviour the map does not, covering only its nodes which changed since
+     * it was last checked.
+     */
+    synchronized boolean hasNew(StatePath statePath) {
+        if (clears != map.clears()) {
+            clears = map.clears();
+            for (Entry entry : entries.values()) {
+                entry.checked = 0;
+            }
+        }
+        Entry entry = entries.computeIfAbsent(statePath, p -> new Entry(map.newHits()));
+        entry.update(statePath.getStateNodes());
+        if (entry.checked < entry.hits.size()) {
+            if (map.hasNew(entry.hits, entry.checked)) {
+                return true;
+            }
+            entry.checked = entry.hits.size();
+        }
+        return false;
+    }
+
+    /**
+     * Adds the behaviours of the path, as of its last check, to the map.
+     */
+    synchronized void merge(StatePath statePath) {
+        Entry entry = entries.get(statePath);
+        if (entry != null) {
+            map.merge(entry.hits);
+            entry.checked = entry.hits.size();
+        }
+    }
+
+    /**
+     * The behaviours of a path as of its last check, the number of them recorded up to each node, and how many
+     * of them were covered by the map then.
+     */
+    private static final class Entry {
+        private final CoverageMap.Hits hits;
+        private StateNode[] nodes = new StateNode[0];
+        private int[] modCounts = new int[0];
+        private String[] graphVers = new String[0];
+        private int[] hitEnds = new int[0];
+        private int size;
+        private int checked;
+
+        Entry(CoverageMap.Hits hits) {
+            this.hits = hits;
+        }
+
+        /**
+         * Covers the nodes from the first one which changed on, as each step is recorded against the node before.
+         */
+        void update(List<StateNode> stateNodes) {
+            int n = stateNodes.size();
+            int same = 0;
+            while (same < Math.min(size, n) && unchanged(same, stateNodes.get(same))) {
+                same++;
+            }
+            if (same == n && same == size) {
+                return;
+            }
+            if (nodes.length < n) {
+                int length = Math.max(n, nodes.length * 2);
+                nodes = Arrays.copyOf(nodes, length);
+                modCounts = Arrays.copyOf(modCounts, length);
+                graphVers = Arrays.copyOf(graphVers, length);
+                hitEnds = Arrays.copyOf(hitEnds, length);
+            }
+            int kept = same == 0 ? 0 : hitEnds[same - 1];
+            hits.truncate(kept);
+            checked = Math.min(checked, kept);
+            StateNode preNode = same == 0 ? null : nodes[same - 1];
+            for (int i = same; i < n; i++) {
+                StateNode stateNode = stateNodes.get(i);
+                stateNode.cover(hits, preNode);
+                nodes[i] = stateNode;
+                modCounts[i] = stateNode.getModCount();
+                graphVers[i] = stateNode.getGraphVer();
+                hitEnds[i] = hits.size();
+                preNode = stateNode;
+            }
+            Arrays.fill(nodes, n, Math.max(n, size), null);
+            size = n;
+        }
+
+        private boolean unchanged(int i, StateNode stateNode) {
+            return nodes[i] == stateNode && modCounts[i] == stateNode.getModCount()
+                    && Objects.equals(graphVers[i], stateNode.getGraphVer());
+        }
+    }
+}
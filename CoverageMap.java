@@ -0,0 +1,248 @@
+package Util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An AFL-style coverage map: a fixed-size bitmap of hashed behaviours, such as monitor vertex transitions,
+ * guard outcomes, rule firings and device state transitions, shared by the worker threads of a campaign.
+ * A {@link Trace} collects the behaviours of one path with branch-free writes into a private bitmap. Whether it
+ * covers anything new is a word-by-word AND-NOT against the map, in O(bits / 64), and merging it is a lock-free
+ * OR of each word. {@link Hits} collects them as a list of bits instead, for keeping the behaviours of many
+ * paths between elections and checking them in O(hits).
+ */
+public final class CoverageMap {
+    /**
+     * The kinds of behaviour, hashed with the behaviour so that different kinds rarely share a bit.
+     */
+    public static final int VERTEX_EDGE = 1;
+    public static final int DEVICE_STATE = 2;
+    public static final int GUARD = 3;
+    public static final int TRIGGER = 4;
+    public static final int RULE = 5;
+
+    public static final int DEFAULT_BITS = 1 << 16;
+
+    /**
+     * Where behaviours are recorded.
+     */
+    public interface Sink {
+        /**
+         * Records a behaviour of the kind, identified by two values, e.g. the source and target of an edge.
+         */
+        void hit(int kind, long a, long b);
+    }
+
+    private final int mask;
+    private final AtomicLongArray covered;
+    private volatile int clears;
+
+    /**
+     * @param bits The size of the map, a power of two of at least 64.
+     */
+    public CoverageMap(int bits) {
+        if (bits < Long.SIZE || Integer.bitCount(bits) != 1) {
+            throw new IllegalArgumentException("Coverage map size shall be a power of two of at least 64: " + bits);
+        }
+        mask = bits - 1;
+        covered = new AtomicLongArray(bits >>> 6);
+    }
+
+    public CoverageMap() {
+        this(DEFAULT_BITS);
+    }
+
+    public int size() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns an empty trace of the size of the map, to be filled by a single thread.
+     */
+    public Trace newTrace() {
+        return new Trace(mask);
+    }
+
+    /**
+     * Returns an empty list of hits for the size of the map, to be filled by a single thread.
+     */
+    public Hits newHits() {
+        return new Hits(mask);
+    }
+
+    /**
+     * Returns whether the hits from the index on cover a behaviour the map does not.
+     */
+    public boolean hasNew(Hits hits, int from) {
+        for (int k = from; k < hits.size; k++) {
+            int i = hits.bits[k];
+            if ((covered.get(i >>> 6) & 1L << i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the hits to the map; concurrent merges never lose a bit.
+     * @return The number of behaviours the map did not cover.
+     */
+    public int merge(Hits hits) {
+        int added = 0;
+        for (int k = 0; k < hits.size; k++) {
+            int i = hits.bits[k];
+            long bit = 1L << i;
+            if ((covered.get(i >>> 6) & bit) == 0
+                    && (covered.getAndAccumulate(i >>> 6, bit, (a, b) -> a | b) & bit) == 0) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns whether the trace covers a behaviour the map does not.
+     */
+    public boolean hasNew(Trace trace) {
+        long[] bits = trace.bits;
+        for (int w = 0; w < bits.length; w++) {
+            if ((bits[w] & ~covered.get(w)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the behaviours of the trace to the map; concurrent merges never lose a bit.
+     * @return The number of behaviours the map did not cover.
+     */
+    public int merge(Trace trace) {
+        long[] bits = trace.bits;
+        int added = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            if (word != 0 && (word & ~covered.get(w)) != 0) {
+                long previous = covered.getAndAccumulate(w, word, (a, b) -> a | b);
+                added += Long.bitCount(word & ~previous);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns the number of behaviours covered so far.
+     */
+    public int count() {
+        int count = 0;
+        for (int w = 0; w < covered.length(); w++) {
+            count += Long.bitCount(covered.get(w));
+        }
+        return count;
+    }
+
+    public void clear() {
+        for (int w = 0; w < covered.length(); w++) {
+            covered.set(w, 0);
+        }
+        clears++;
+    }
+
+    /**
+     * Returns the number of times the map was cleared, which tells whether behaviours found covered still are.
+     */
+    public int clears() {
+        return clears;
+    }
+
+    /**
+     * The behaviours of one path.
+     */
+    public static final class Trace implements Sink {
+        private final int mask;
+        private final long[] bits;
+
+        private Trace(int mask) {
+            this.mask = mask;
+            this.bits = new long[(mask + 1) >>> 6];
+        }
+
+        @Override
+        public void hit(int kind, long a, long b) {
+            int i = bitOf(mask, kind, a, b);
+            bits[i >>> 6] |= 1L << i;
+        }
+
+        public int size() {
+            return mask + 1;
+        }
+
+        public int count() {
+            int count = 0;
+            for (long word : bits) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+
+        public void clear() {
+            Arrays.fill(bits, 0);
+        }
+
+        /**
+         * Copies the behaviours of the other trace into this one.
+         */
+        public void copyFrom(Trace other) {
+            System.arraycopy(other.bits, 0, bits, 0, bits.length);
+        }
+    }
+
+    /**
+     * The behaviours of one path as the list of their bits, in the order they were recorded.
+     */
+    public static final class Hits implements Sink {
+        private final int mask;
+        private int[] bits = new int[16];
+        private int size;
+
+        private Hits(int mask) {
+            this.mask = mask;
+        }
+
+        @Override
+        public void hit(int kind, long a, long b) {
+            if (size == bits.length) {
+                bits = Arrays.copyOf(bits, size * 2);
+            }
+            bits[size++] = bitOf(mask, kind, a, b);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Keeps the first hits only.
+         */
+        public void truncate(int size) {
+            this.size = Math.min(this.size, size);
+        }
+
+        public void clear() {
+            size = 0;
+        }
+    }
+
+    private static int bitOf(int mask, int kind, long a, long b) {
+        return (int) mix(mix(kind * 0x9e3779b97f4a7c15L ^ a) + b) & mask;
+    }
+
+    /**
+     * The SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
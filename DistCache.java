@@ -0,0 +1,241 @@
+package Mutate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import Specification.Specification;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+import StatePath.StatePath;
+
+/**
+ * Caches the distances of state nodes and the running minimum of state paths between elections, so that only
+ * the nodes appended or modified since the last election are scored again.
+ * Nodes are keyed by their step id, which no other node shares, so that the node cache holds no node; paths are
+ * keyed by identity and dropped as soon as they are no longer candidates. Both caches are bounded and evict
+ * their oldest entries first.
+ */
+class DistCache {
+    private final int nodeCapacity;
+    private final int pathCapacity;
+
+    private final Map<NodeKey, Double> nodeDists = new ConcurrentHashMap<>();
+    private final Queue<NodeKey> nodeOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nodeCount = new AtomicInteger();
+
+    private final Map<PathKey, PathEntry> pathEntries = new ConcurrentHashMap<>();
+    private final Queue<PathKey> pathOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pathCount = new AtomicInteger();
+
+    /**
+     * What the cached distances were measured against; a change of any invalidates the caches.
+     */
+    private Specification specification;
+    private int detectionLayer;
+    private int lookAhead;
+    /**
+     * The engine is rebuilt whenever the rule chain, the layout or the depth changes, so it stands for the rule
+     * chain; the layout is kept apart as there is no engine when the depth is 0.
+     */
+    private RuleChainEngine engine;
+    private StateLayout layout;
+
+    DistCache(int nodeCapacity, int pathCapacity) {
+        this.nodeCapacity = nodeCapacity;
+        this.pathCapacity = pathCapacity;
+    }
+
+    /**
+     * Clears the caches if they were filled for another specification, detection depth, look-ahead, rule chain
+     * engine or layout. Shall be called before a round of scoring, not concurrently with it.
+     */
+    void validate(Specification specification, int detectionLayer, int lookAhead, RuleChainEngine engine,
+                  StateLayout layout) {
+        if (this.specification != specification || this.detectionLayer != detectionLayer
+                || this.lookAhead != lookAhead || this.engine != engine || this.layout != layout) {
+            clear();
+            this.specification = specification;
+            this.detectionLayer = detectionLayer;
+            this.lookAhead = lookAhead;
+            this.engine = engine;
+            this.layout = layout;
+        }
+    }
+
+    /**
+     * Returns whether the cached distances were measured against the specification, engine and layout.
+     */
+    boolean serves(Specification specification, RuleChainEngine engine, StateLayout layout) {
+        return this.specification == specification && this.engine == engine && this.layout == layout;
+    }
+
+    /**
+     * Drops the paths, and the distances of their nodes, e.g. when they were spilled to a trace store.
+     * Shall not be called concurrently with a round of scoring.
+     */
+    void forget(Collection<StatePath> statePaths) {
+        Set<PathKey> keys = new HashSet<>();
+        for (StatePath statePath : statePaths) {
+            PathKey key = new PathKey(statePath);
+            PathEntry entry = pathEntries.remove(key);
+            if (entry == null) {
+                continue;
+            }
+            keys.add(key);
+            pathCount.decrementAndGet();
+            for (int i = 0; i < entry.nodes.length; i++) {
+                if (nodeDists.remove(new NodeKey(entry.nodes[i].getStepId(), entry.modCounts[i],
+                        entry.graphVers[i])) != null) {
+                    nodeCount.decrementAndGet();
+                }
+            }
+        }
+        if (!keys.isEmpty()) {
+            pathOrder.removeIf(keys::contains);
+        }
+    }
+
+    /**
+     * Drops the paths which are not among the candidates, after a round of scoring which cached every candidate.
+     */
+    void retain(List<StatePath> statePaths) {
+        if (pathCount.get() <= statePaths.size()) {
+            return;
+        }
+        Set<StatePath> current = Collections.newSetFromMap(new IdentityHashMap<>());
+        current.addAll(statePaths);
+        List<StatePath> stale = new ArrayList<>();
+        for (PathKey key : pathEntries.keySet()) {
+            if (!current.contains(key.path)) {
+                stale.add(key.path);
+            }
+        }
+        forget(stale);
+    }
+
+    void clear() {
+        nodeDists.clear();
+        nodeOrder.clear();
+        nodeCount.set(0);
+        pathEntries.clear();
+        pathOrder.clear();
+        pathCount.set(0);
+    }
+
+    /**
+     * Returns the cached distance of the node, or NaN if it has not been scored in its current state.
+     */
+    double nodeDist(StateNode stateNode) {
+        Double dist = nodeDists.get(new NodeKey(stateNode));
+        return dist == null ? Double.NaN : dist;
+    }
+
+    void putNodeDist(StateNode stateNode, double dist) {
+        NodeKey key = new NodeKey(stateNode);
+        if (nodeDists.put(key, dist) == null) {
+            nodeOrder.add(key);
+            if (nodeCount.incrementAndGet() > nodeCapacity) {
+                NodeKey eldest = nodeOrder.poll();
+                if (eldest != null && nodeDists.remove(eldest) != null) {
+                    nodeCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    PathEntry pathEntry(StatePath statePath) {
+        return pathEntries.get(new PathKey(statePath));
+    }
+
+    void putPathEntry(StatePath statePath, PathEntry entry) {
+        PathKey key = new PathKey(statePath);
+        if (pathEntries.put(key, entry) == null) {
+            pathOrder.add(key);
+            if (pathCount.incrementAndGet() > pathCapacity) {
+                PathKey eldest = pathOrder.poll();
+                if (eldest != null && pathEntries.remove(eldest) != null) {
+                    pathCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * The nodes of a path as they were when it was last scored, with the running minimum up to each node.
+     */
+    static final class PathEntry {
+        final StateNode[] nodes;
+        final int[] modCounts;
+        final String[] graphVers;
+        final double[] prefixMin;
+
+        PathEntry(int size) {
+            nodes = new StateNode[size];
+            modCounts = new int[size];
+            graphVers = new String[size];
+            prefixMin = new double[size];
+        }
+
+        /**
+         * Returns whether the node at the position is the same node, in the same state, as when it was scored.
+         */
+        boolean unchanged(int i, StateNode stateNode) {
+            return nodes[i] == stateNode && modCounts[i] == stateNode.getModCount()
+                    && Objects.equals(graphVers[i], stateNode.getGraphVer());
+        }
+    }
+
+    /**
+     * A node, by its step id, in the state it had when its distance was cached.
+     */
+    private static final class NodeKey {
+        private final long stepId;
+        private final int modCount;
+        private final String graphVer;
+        private final int hash;
+
+        NodeKey(StateNode node) {
+            this(node.getStepId(), node.getModCount(), node.getGraphVer());
+        }
+
+        NodeKey(long stepId, int modCount, String graphVer) {
+            this.stepId = stepId;
+            this.modCount = modCount;
+            this.graphVer = graphVer;
+            this.hash = Long.hashCode(stepId) * 31 + modCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return false;
+            }
+            NodeKey other = (NodeKey) o;
+            return stepId == other.stepId && modCount == other.modCount && Objects.equals(graphVer, other.graphVer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class PathKey {
+        private final StatePath path;
+
+        PathKey(StatePath path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PathKey && ((PathKey) o).path == path;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(path);
+        }
+    }
+}
@@ -1,23 +1,31 @@
 package Mutate;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import Common.EnvDynamics.EnvDynamics;
-import Common.Enums.Compare;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 import Common.Rule.Condition.Condition;
 import Common.Rule.Rule;
-import Core.Core;
-import RuleChain.RuleChain;
-import Specification.Graph.Graph;
+import Core.FuzzContext;
 import Specification.Specification;
 import StatePath.StateNode;
 import StatePath.StatePath;
-import StatePath.subState.EnvInstance;
+import StatePath.CondEvaluator;
+import StatePath.EnvStepper;
+import StatePath.StateLayout;
+import StatePath.TraceStore;
+import Util.CoverageMap;
+import Util.FuzzEvents;
+import Util.Metrics;
 
 public class DistMeasurement {
     /**
      * Number of layers for mutation exploration, including the first layer for implementation convenience.
      */
-    static int DETECTION_LAYER_NUM = 0;
+    private volatile int detectionLayerNum = 0;
 
     /**
      * The first layer shall be coped particularly.
@@ -25,151 +33,817 @@ public class DistMeasurement {
     static final int BASE_LAYER = 1;
 
     /**
-     * The map of power in different layers.
+     * The rule chain compiled for the current layout and detection depth.
      */
-    private final List<Double> powerMap = new ArrayList<>();
+    private volatile RuleChainEngine ruleChainEngine;
 
-    private Specification specification;
+    /**
+     * The rule chain compiled for each shallower depth anytime scoring refines through.
+     */
+    private final Map<Integer, RuleChainEngine> layerEngines = new HashMap<>();
+
+    /**
+     * The compiled monitor graph of each specification.
+     */
+    private final Map<Specification, MonitorTable> monitorTables = new IdentityHashMap<>();
+
+    /**
+     * The monitor tables and rule chain engines compiled for nodes of a layout other than the current one, e.g.
+     * nodes built before the pools were reloaded; only the last such layout is kept.
+     */
+    private volatile OtherLayout otherLayout;
+
+    /**
+     * The specification of the last election, only kept for {@link #accurateDist(String, StateNode)}.
+     * Scoring itself receives the specification explicitly, so it can run on several threads.
+     */
+    private volatile Specification specification;
+
+    /**
+     * The pool scoring the candidate paths in parallel, or null to score them serially.
+     */
+    private volatile ForkJoinPool scoringPool;
+
+    /**
+     * Distances kept between elections, or null when caching is disabled.
+     */
+    private volatile DistCache distCache = new DistCache(1 << 18, 1 << 14);
+
+    /**
+     * The number of steps the env variables are projected ahead when measuring condition distances, 0 for none.
+     */
+    private volatile int lookAhead;
 
     /**
-     * Singleton design.
+     * The budget of an election in anytime scoring, in nanoseconds and in node scorings; 0 for none.
      */
-    private static final DistMeasurement distMeasurement = new DistMeasurement();
+    private volatile long budgetNanos;
+    private volatile long budgetOps;
+
+    /**
+     * The wall time per path of scoring at each detection depth in the previous elections, 0 if unknown, and
+     * the depth the last election completed.
+     */
+    private double[] depthNanos = new double[0];
+    private volatile int anytimeDepth;
+
+    /**
+     * The behaviours covered by the elected paths, or null to elect by distance only.
+     */
+    private volatile CoverageMap coverage;
+
+    /**
+     * The behaviours of the candidate paths as of the last election, against the coverage map.
+     */
+    private volatile CoverageCache coverageCache;
+
+    /**
+     * Per-thread memo of the condition distances of the node being scored against several specifications,
+     * indexed by evaluator id, and of the projected env values of the path being scored.
+     */
+    private final ThreadLocal<NodeMemo> nodeMemo = ThreadLocal.withInitial(NodeMemo::new);
+
+    /**
+     * Schedules the scored paths for mutation.
+     */
+    private final SeedScheduler seedScheduler = new SeedScheduler(new SplittableRandom().nextLong());
+
+    /**
+     * The campaign whose pools, rule chain and candidate paths are measured.
+     */
+    private final FuzzContext context;
+
+    /**
+     * Singleton design, for the global context.
+     */
+    private static final DistMeasurement distMeasurement = new DistMeasurement(FuzzContext.global());
 
     public static DistMeasurement getInstance() {
         return distMeasurement;
     }
 
     /**
-     * Initialize the weight map.
+     * Creates the distance engine of a context; see {@link FuzzContext#getDistMeasurement()}.
+     */
+    public DistMeasurement(FuzzContext context) {
+        this.context = context;
+    }
+
+    public FuzzContext getContext() {
+        return context;
+    }
+
+    /**
+     * Sets the number of layers for mutation exploration. The weight of each layer follows the depth, e.g. for 5:
      * layer    1       2       3       4       5
      * weight 16/31   8/31    4/31    2/31    1/31  total = 1
      */
-    private DistMeasurement() {
-        double total = 0;
-        for (int i = 0; i < DETECTION_LAYER_NUM; i++) {
-            powerMap.add(Math.pow(2, i));
-            total += Math.pow(2, i);
+    public void setDetectionDepth(int depth) {
+        detectionLayerNum = Math.max(depth, 0);
+    }
+
+    /**
+     * Returns the rule chain engine of the loaded rule chain, building it again if the rule chain, the layout or
+     * the detection depth has changed.
+     */
+    RuleChainEngine ruleChainEngine() {
+        RuleChainEngine engine = ruleChainEngine;
+        StateLayout layout = context.getLayout();
+        if (engine == null || !engine.builtFor(context.getRuleChain(), layout, detectionLayerNum)) {
+            engine = new RuleChainEngine(context.getRuleChain(), layout, detectionLayerNum);
+            ruleChainEngine = engine;
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the rule chain engine for the depth, built once per depth for the loaded rule chain and layout.
+     */
+    RuleChainEngine ruleChainEngine(int depth) {
+        if (depth == detectionLayerNum) {
+            return ruleChainEngine();
+        }
+        StateLayout layout = context.getLayout();
+        synchronized (layerEngines) {
+            RuleChainEngine engine = layerEngines.get(depth);
+            if (engine == null || !engine.builtFor(context.getRuleChain(), layout, depth)) {
+                engine = new RuleChainEngine(context.getRuleChain(), layout, depth);
+                layerEngines.put(depth, engine);
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Returns the rule chain engine for the depth compiled against the layout, which need not be the current one.
+     */
+    RuleChainEngine ruleChainEngine(int depth, StateLayout layout) {
+        return layout == context.getLayout() ? ruleChainEngine(depth)
+                : otherLayout(layout).engine(context.getRuleChain(), depth);
+    }
+
+    /**
+     * Returns the engine scoring at the detection depth, or null if the depth disables the fine-grained distance.
+     */
+    private RuleChainEngine scoringEngine() {
+        return detectionLayerNum > 0 ? ruleChainEngine() : null;
+    }
+
+    /**
+     * Sets the number of threads scoring the candidate paths; 1 or less scores them serially.
+     * Both modes elect the same path.
+     */
+    public void setParallelism(int parallelism) {
+        ForkJoinPool old = scoringPool;
+        scoringPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        if (old != null) {
+            old.shutdown();
         }
-        powerMap.add(total);
+    }
+
+    /**
+     * Drops what is cached about the paths, e.g. once they were spilled to a trace store or are no longer
+     * candidates. Paths missing from the candidates of an election are dropped anyway.
+     */
+    public void forget(Collection<StatePath> statePaths) {
+        DistCache cache = distCache;
+        if (cache != null) {
+            cache.forget(statePaths);
+        }
+        CoverageCache covered = coverageCache;
+        if (covered != null) {
+            for (StatePath statePath : statePaths) {
+                covered.forget(statePath);
+            }
+        }
+        for (StatePath statePath : statePaths) {
+            seedScheduler.remove(statePath);
+        }
+    }
+
+    /**
+     * Sets how many node distances and path minimums are kept between elections; 0 disables caching.
+     */
+    public void setCacheCapacity(int nodeCapacity, int pathCapacity) {
+        distCache = nodeCapacity > 0 && pathCapacity > 0 ? new DistCache(nodeCapacity, pathCapacity) : null;
+    }
+
+    /**
+     * Sets how many steps ahead the continuous env variables are projected, following their change rates, when
+     * measuring how near a node is to a numeric condition; 0 (the default) measures the current values only.
+     * With a look-ahead, a condition is as near as it is now or will be, and an equality whose target will be
+     * crossed counts as fulfilled.
+     */
+    public void setLookAhead(int steps) {
+        lookAhead = Math.max(steps, 0);
+    }
+
+    /**
+     * Sets the budget of an election, in nanoseconds and in node scorings (a node scored at one depth counts
+     * once); 0 for none. With a budget, elections score the paths anytime: coarsely by the distance of their
+     * vertices first, then one detection layer deeper at a time up to the detection depth, for as long as the
+     * next layer is expected to fit in what is left of the budget. The estimate follows the number of paths and
+     * the time each depth took in the previous elections.
+     */
+    public void setScoringBudget(long nanos, long operations) {
+        budgetNanos = Math.max(nanos, 0);
+        budgetOps = Math.max(operations, 0);
+    }
+
+    /**
+     * Returns the detection depth the last anytime scoring completed, 0 for the coarse distances only.
+     */
+    public int getAnytimeDepth() {
+        return anytimeDepth;
+    }
+
+    /**
+     * Sets the coverage map of the campaign, possibly shared with other workers; null (the default) elects by
+     * distance only. With a map, an election first goes to the closest path covering a behaviour the map does
+     * not, i.e. a monitor vertex transition or a device state transition, whose behaviours are then merged into
+     * the map. The other novel paths keep their priority for the next elections.
+     */
+    public void setCoverage(CoverageMap coverage) {
+        this.coverage = coverage;
+    }
+
+    public CoverageMap getCoverage() {
+        return coverage;
     }
 
     /**
      * Elects the best state path for mutation.
      */
     public StatePath pathVoter(Specification specification) {
-        StatePath bestPath = null;
-        List<StatePath> statePaths = Core.getCoreInstance().getStatePaths();
+        return pathVoter(specification, context.getStatePaths());
+    }
+
+    /**
+     * Elects the best state path for mutation among the given paths, as the seed scheduler selects it.
+     */
+    public StatePath pathVoter(Specification specification, List<StatePath> statePaths) {
+        if (statePaths.isEmpty()) {
+            return null;
+        }
+        // The conditions are compiled with the monitor table and the rule chain engine, once per specification
+        // and layout, before scoring rather than on first use by the scoring threads.
+        monitorTable(specification);
+        ruleChainEngine();
         this.specification = specification;
-        double maxDist = Double.MAX_VALUE;
+        long start = Metrics.start();
+        FuzzEvents.PathElection event = Metrics.ENABLED ? new FuzzEvents.PathElection() : null;
+        if (event != null) {
+            event.begin();
+        }
+        double[] pathDists = budgetNanos > 0 || budgetOps > 0
+                ? scoreAnytime(specification, statePaths)
+                : scorePaths(specification, statePaths);
+        seedScheduler.updateAll(statePaths, pathDists);
+        StatePath elected = electNovel(statePaths, pathDists);
+        if (elected == null) {
+            elected = seedScheduler.select();
+        }
+        Metrics.count(Metrics.Counter.ELECTION);
+        Metrics.recordSince(Metrics.Histogram.ELECTION_NANOS, start);
+        if (event != null && event.shouldCommit()) {
+            event.pathCount = statePaths.size();
+            for (int i = 0; i < pathDists.length; i++) {
+                if (statePaths.get(i) == elected) {
+                    event.selectedDist = pathDists[i];
+                }
+            }
+            event.commit();
+        }
+        spillCold(statePaths, pathDists, elected);
+        return elected;
+    }
+
+    /**
+     * Moves the farthest candidates beyond the hot capacity to the trace store of the context, if it has one,
+     * keeping the elected path on the heap.
+     * @throws UncheckedIOException If the store cannot be written; the candidates are then left as they were.
+     */
+    private void spillCold(List<StatePath> statePaths, double[] pathDists, StatePath elected) {
+        TraceStore store = context.getTraceStore();
+        if (store == null || statePaths != context.getStatePaths() || statePaths.size() <= context.getHotCapacity()) {
+            return;
+        }
+        double[] ranks = pathDists.clone();
+        for (int i = 0; i < ranks.length; i++) {
+            if (statePaths.get(i) == elected) {
+                ranks[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        try {
+            forget(store.spillCold(statePaths, ranks, context.getHotCapacity()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the closest path covering a behaviour the coverage map does not, after merging its behaviours into
+     * the map, or null if there is no map or no such path.
+     */
+    private StatePath electNovel(List<StatePath> statePaths, double[] pathDists) {
+        CoverageMap map = coverage;
+        if (map == null) {
+            return null;
+        }
+        CoverageCache cache = coverageCache;
+        if (cache == null || !cache.serves(map)) {
+            coverageCache = cache = new CoverageCache(map);
+        }
+        cache.retain(statePaths);
+        int novel = -1;
+        for (int i = 0; i < statePaths.size(); i++) {
+            if (novel >= 0 && pathDists[i] >= pathDists[novel]) {
+                continue; // Cannot beat the closest novel path so far
+            }
+            if (cache.hasNew(statePaths.get(i))) {
+                novel = i;
+            }
+        }
+        if (novel < 0) {
+            return null;
+        }
+        StatePath elected = statePaths.get(novel);
+        cache.merge(elected);
+        seedScheduler.picked(elected);
+        Metrics.count(Metrics.Counter.NOVEL_ELECTION);
+        return elected;
+    }
+
+    /**
+     * Records the steps of the path in the trace.
+     */
+    public static void cover(StatePath statePath, CoverageMap.Sink trace) {
+        StateNode preNode = null;
+        for (StateNode stateNode : statePath.getStateNodes()) {
+            stateNode.cover(trace, preNode);
+            preNode = stateNode;
+        }
+    }
+
+    /**
+     * Returns the scheduler electing the paths; its seed replays the elections of a campaign.
+     */
+    public SeedScheduler getSeedScheduler() {
+        return seedScheduler;
+    }
+
+    /**
+     * Elects the closest path for each of several specifications, scoring the paths in a single walk.
+     * @return The closest path of each specification, or null if there is no path.
+     */
+    public Map<Specification, StatePath> bestPaths(List<Specification> specifications, List<StatePath> statePaths) {
+        double[][] pathDists = scorePaths(specifications, statePaths);
+        Map<Specification, StatePath> best = new LinkedHashMap<>();
+        for (int s = 0; s < pathDists.length; s++) {
+            int closest = -1;
+            for (int i = 0; i < pathDists[s].length; i++) {
+                if (closest < 0 || pathDists[s][i] < pathDists[s][closest]) {
+                    closest = i;
+                }
+            }
+            best.put(specifications.get(s), closest < 0 ? null : statePaths.get(closest));
+        }
+        return best;
+    }
+
+    /**
+     * Ranks the given paths against several specifications at once, closest first.
+     * @return The ranked paths of each specification, in the order of the specifications.
+     */
+    public Map<Specification, List<StatePath>> rankPaths(List<Specification> specifications, List<StatePath> statePaths) {
+        double[][] pathDists = scorePaths(specifications, statePaths);
+        Map<Specification, List<StatePath>> ranked = new LinkedHashMap<>();
+        for (int s = 0; s < pathDists.length; s++) {
+            double[] dists = pathDists[s];
+            Integer[] order = new Integer[statePaths.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> dists[i])); // Stable, ties keep the path order
+            List<StatePath> paths = new ArrayList<>(order.length);
+            for (int i : order) {
+                paths.add(statePaths.get(i));
+            }
+            ranked.put(specifications.get(s), paths);
+        }
+        return ranked;
+    }
+
+    /**
+     * Scores every path against several specifications in a single walk over the paths, in the scoring pool if
+     * there is one. The distance of each condition is measured once per node and shared by all the
+     * specifications using it, as are the rule chain distances.
+     * The distance cache only serves single specifications, so it is neither used nor filled here.
+     * @return The distances of the paths for each specification, in the order of the specifications.
+     */
+    public double[][] scorePaths(List<Specification> specifications, List<StatePath> statePaths) {
+        MonitorTable[] tables = new MonitorTable[specifications.size()];
+        for (int s = 0; s < tables.length; s++) {
+            tables[s] = monitorTable(specifications.get(s));
+        }
+        ruleChainEngine();
+        long start = Metrics.start();
+        FuzzEvents.PathScoring event = scoringEvent();
+        double[][] pathDists = new double[tables.length][statePaths.size()];
+        ForkJoinPool pool = scoringPool;
+        if (pool == null) {
+            for (int i = 0; i < statePaths.size(); i++) {
+                calcPathDists(tables, statePaths.get(i), pathDists, i);
+            }
+        } else {
+            pool.submit(() -> IntStream.range(0, statePaths.size()).parallel()
+                    .forEach(i -> calcPathDists(tables, statePaths.get(i), pathDists, i))).join();
+        }
+        endScoring(event, start, statePaths.size(), tables.length, false);
+        return pathDists;
+    }
+
+    /**
+     * Walks the path once, measuring each node against every monitor table.
+     */
+    private void calcPathDists(MonitorTable[] tables, StatePath statePath, double[][] pathDists, int index) {
+        NodeMemo memo = nodeMemo.get();
+        RuleChainEngine engine = scoringEngine();
+        for (double[] dists : pathDists) {
+            dists[index] = Double.MAX_VALUE;
+        }
+        List<StateNode> stateNodes = statePath.getStateNodes();
+        memo.project(stateNodes, 0, lookAhead);
+        for (int i = 0; i < stateNodes.size(); i++) {
+            StateNode stateNode = stateNodes.get(i);
+            memo.reset(stateNode, i);
+            for (int s = 0; s < tables.length; s++) {
+                double nodeDist = calcNodeDist(tables[s], stateNode, tables[s].vertexOf(stateNode), memo, engine);
+                pathDists[s][index] = Math.min(nodeDist, pathDists[s][index]);
+            }
+        }
+    }
+
+    /**
+     * Scores every path, in the scoring pool if there is one.
+     * @return The distances, in the order of the paths.
+     */
+    public double[] scorePaths(Specification specification, List<StatePath> statePaths) {
+        MonitorTable table = monitorTable(specification);
+        RuleChainEngine engine = scoringEngine();
+        DistCache cache = distCache;
+        if (cache != null) {
+            cache.validate(specification, detectionLayerNum, lookAhead, engine, table.getLayout());
+        }
+        long start = Metrics.start();
+        FuzzEvents.PathScoring event = scoringEvent();
+        double[] pathDists;
+        ForkJoinPool pool = scoringPool;
+        if (pool == null) {
+            pathDists = new double[statePaths.size()];
+            for (int i = 0; i < pathDists.length; i++) {
+                pathDists[i] = calcPathDist(table, statePaths.get(i), engine, cache);
+            }
+        } else {
+            pathDists = pool.submit(() -> IntStream.range(0, statePaths.size()).parallel()
+                    .mapToDouble(i -> calcPathDist(table, statePaths.get(i), engine, cache))
+                    .toArray()).join();
+        }
+        if (cache != null) {
+            cache.retain(statePaths);
+        }
+        endScoring(event, start, statePaths.size(), 1, cache != null);
+        return pathDists;
+    }
+
+    /**
+     * Scores every path anytime within the budget; see {@link #setScoringBudget}. The distance cache is not
+     * used, as the depth changes from one election to the next.
+     * @return The distances at the deepest detection depth completed for every path, in the order of the paths.
+     */
+    public double[] scoreAnytime(Specification specification, List<StatePath> statePaths) {
+        MonitorTable table = monitorTable(specification);
+        long start = Metrics.start();
+        FuzzEvents.PathScoring event = scoringEvent();
+        long nanos = budgetNanos;
+        long ops = budgetOps;
+        long deadline = nanos > 0 ? System.nanoTime() + nanos : Long.MAX_VALUE;
+        long opsLeft = ops > 0 ? ops : Long.MAX_VALUE;
+        long nodeCount = 0;
         for (StatePath statePath : statePaths) {
-            double pathDist = calcPathDist(statePath);
-            if (pathDist < maxDist) {
-                maxDist = pathDist;
-                bestPath = statePath;
+            nodeCount += statePath.getStateNodes().size();
+        }
+        int size = Math.max(statePaths.size(), 1);
+        // The coarse distances are always completed, whatever the budget.
+        double[] pathDists = scoreLayer(table, statePaths, null, Long.MAX_VALUE, new AtomicInteger());
+        opsLeft -= nodeCount;
+        int depth = 0;
+        int maxDepth = detectionLayerNum;
+        synchronized (this) {
+            if (depthNanos.length <= maxDepth) {
+                depthNanos = Arrays.copyOf(depthNanos, maxDepth + 1);
+            }
+            for (int d = 1; d <= maxDepth; d++) {
+                long now = System.nanoTime();
+                if (nodeCount > opsLeft || nanos > 0 && now + (long) (depthNanos[d] * size) - deadline > 0) {
+                    break; // The layer is not expected to fit in the budget
+                }
+                AtomicInteger done = new AtomicInteger();
+                double[] dists = scoreLayer(table, statePaths, ruleChainEngine(d), deadline, done);
+                double nanosPerPath = (double) (System.nanoTime() - now) / Math.max(done.get(), 1);
+                depthNanos[d] = depthNanos[d] == 0 ? nanosPerPath : (depthNanos[d] + nanosPerPath) / 2;
+                if (done.get() < statePaths.size()) {
+                    break; // Ran out of time; the paths are only compared at the same depth
+                }
+                opsLeft -= nodeCount;
+                pathDists = dists;
+                depth = d;
+            }
+        }
+        anytimeDepth = depth;
+        Metrics.record(Metrics.Histogram.ANYTIME_DEPTH, depth);
+        endScoring(event, start, statePaths.size(), 1, false);
+        return pathDists;
+    }
+
+    /**
+     * Scores every path at the depth of the engine, or coarsely without an engine, in the scoring pool if there
+     * is one. Paths are no longer scored once the deadline has passed.
+     * @param done Counts the paths scored.
+     */
+    private double[] scoreLayer(MonitorTable table, List<StatePath> statePaths, RuleChainEngine engine,
+                                long deadline, AtomicInteger done) {
+        double[] dists = new double[statePaths.size()];
+        IntConsumer score = i -> {
+            if (deadline == Long.MAX_VALUE || System.nanoTime() - deadline < 0) {
+                dists[i] = calcPathDist(table, statePaths.get(i), engine);
+                done.incrementAndGet();
+            }
+        };
+        ForkJoinPool pool = scoringPool;
+        if (pool == null) {
+            for (int i = 0; i < dists.length; i++) {
+                score.accept(i);
             }
+        } else {
+            pool.submit(() -> IntStream.range(0, dists.length).parallel().forEach(score)).join();
+        }
+        return dists;
+    }
+
+    private static FuzzEvents.PathScoring scoringEvent() {
+        if (!Metrics.ENABLED) {
+            return null;
         }
-        if (new Random().nextDouble() > 0.8) // Partial random weighting
-            bestPath = statePaths.get(new Random().nextInt(statePaths.size()));
+        FuzzEvents.PathScoring event = new FuzzEvents.PathScoring();
+        event.begin();
+        return event;
+    }
 
-        return bestPath;
+    private static void endScoring(FuzzEvents.PathScoring event, long start, int pathCount,
+                                   int specificationCount, boolean cached) {
+        Metrics.recordSince(Metrics.Histogram.SCORING_NANOS, start);
+        if (event != null && event.shouldCommit()) {
+            event.pathCount = pathCount;
+            event.specificationCount = specificationCount;
+            event.cached = cached;
+            event.commit();
+        }
     }
 
     /**
      * Calculate the distance of the given statePath.
+     * @param specification The specification the distance is measured against.
      * @param statePath The statePath required to measure.
      * @return The distance of the path.
      */
-    private double calcPathDist(StatePath statePath) {
+    public double calcPathDist(Specification specification, StatePath statePath) {
+        DistCache cache = distCache;
+        MonitorTable table = monitorTable(specification);
+        RuleChainEngine engine = scoringEngine();
+        return calcPathDist(table, statePath, engine,
+                cache != null && cache.serves(specification, engine, table.getLayout()) ? cache : null);
+    }
+
+    /**
+     * @param cache The distance cache serving the specification of the table, or null to score every node.
+     */
+    private double calcPathDist(MonitorTable table, StatePath statePath, RuleChainEngine engine, DistCache cache) {
+        return cache != null ? calcPathDistCached(table, statePath, cache, engine)
+                : calcPathDist(table, statePath, engine);
+    }
+
+    private double calcPathDist(MonitorTable table, StatePath statePath, RuleChainEngine engine) {
+        List<StateNode> stateNodes = statePath.getStateNodes();
+        NodeMemo memo = engine == null ? null : projection(stateNodes, 0);
         double res = Double.MAX_VALUE;
-        for (StateNode stateNode : statePath.getStateNodes()) {
-            res = Math.min(calcNodeDist(stateNode, stateNode.getGraphVer()), res);
+        for (int i = 0; i < stateNodes.size(); i++) {
+            StateNode stateNode = stateNodes.get(i);
+            if (memo != null) {
+                memo.reset(stateNode, i);
+            }
+            res = Math.min(calcNodeDist(table, stateNode, table.vertexOf(stateNode), memo, engine), res);
+        }
+        return res;
+    }
+
+    /**
+     * Calculate the distance of the given statePath, reusing the running minimum of the nodes unchanged since
+     * the last election and the cached distances of the other nodes.
+     */
+    private double calcPathDistCached(MonitorTable table, StatePath statePath, DistCache cache,
+                                      RuleChainEngine engine) {
+        List<StateNode> stateNodes = statePath.getStateNodes();
+        int size = stateNodes.size();
+        DistCache.PathEntry old = cache.pathEntry(statePath);
+        int unchanged = 0;
+        if (old != null) {
+            int limit = Math.min(size, old.nodes.length);
+            while (unchanged < limit && old.unchanged(unchanged, stateNodes.get(unchanged))) {
+                unchanged++;
+            }
+            if (unchanged == size && size == old.nodes.length) {
+                Metrics.count(Metrics.Counter.PATH_CACHE_HIT);
+                return size == 0 ? Double.MAX_VALUE : old.prefixMin[size - 1];
+            }
+        }
+        DistCache.PathEntry entry = new DistCache.PathEntry(size);
+        if (unchanged > 0) {
+            System.arraycopy(old.nodes, 0, entry.nodes, 0, unchanged);
+            System.arraycopy(old.modCounts, 0, entry.modCounts, 0, unchanged);
+            System.arraycopy(old.graphVers, 0, entry.graphVers, 0, unchanged);
+            System.arraycopy(old.prefixMin, 0, entry.prefixMin, 0, unchanged);
+        }
+        double res = unchanged > 0 ? entry.prefixMin[unchanged - 1] : Double.MAX_VALUE;
+        NodeMemo memo = projection(stateNodes, unchanged);
+        for (int i = unchanged; i < size; i++) {
+            StateNode stateNode = stateNodes.get(i);
+            double nodeDist = cache.nodeDist(stateNode);
+            if (Double.isNaN(nodeDist)) {
+                if (memo != null) {
+                    memo.reset(stateNode, i - unchanged);
+                }
+                nodeDist = calcNodeDist(table, stateNode, table.vertexOf(stateNode), memo, engine);
+                cache.putNodeDist(stateNode, nodeDist);
+            } else {
+                Metrics.count(Metrics.Counter.NODE_CACHE_HIT);
+            }
+            res = Math.min(nodeDist, res);
+            entry.nodes[i] = stateNode;
+            entry.modCounts[i] = stateNode.getModCount();
+            entry.graphVers[i] = stateNode.getGraphVer();
+            entry.prefixMin[i] = res;
         }
+        cache.putPathEntry(statePath, entry);
         return res;
     }
 
+    /**
+     * Returns the memo of the current thread with the nodes from the index on projected ahead, or null when
+     * there is no look-ahead.
+     */
+    private NodeMemo projection(List<StateNode> stateNodes, int from) {
+        int steps = lookAhead;
+        if (steps <= 0) {
+            return null;
+        }
+        NodeMemo memo = nodeMemo.get();
+        memo.project(stateNodes, from, steps);
+        return memo;
+    }
+
+    /**
+     * Returns the monitor table of the specification, compiled on first use for the current layout.
+     */
+    MonitorTable monitorTable(Specification specification) {
+        StateLayout layout = context.getLayout();
+        synchronized (monitorTables) {
+            MonitorTable table = monitorTables.get(specification);
+            if (table == null || !table.builtFor(layout)) {
+                table = new MonitorTable(specification, layout);
+                monitorTables.put(specification, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Uses the table, e.g. one loaded prebuilt from a compiled cache, for its specification; a table of another
+     * layout than the current one is ignored.
+     */
+    public void putMonitorTable(MonitorTable table) {
+        if (table.builtFor(context.getLayout())) {
+            synchronized (monitorTables) {
+                monitorTables.put(table.getSpecification(), table);
+            }
+        }
+    }
+
+    /**
+     * Returns the monitor table of the specification compiled against the layout, which need not be the current
+     * one.
+     */
+    MonitorTable monitorTable(Specification specification, StateLayout layout) {
+        return layout == context.getLayout() ? monitorTable(specification)
+                : otherLayout(layout).monitorTable(specification);
+    }
+
+    private OtherLayout otherLayout(StateLayout layout) {
+        OtherLayout other = otherLayout;
+        if (other == null || other.layout != layout) {
+            otherLayout = other = new OtherLayout(layout);
+        }
+        return other;
+    }
+
     /**
      * Calculate the distance of the given stateNode to false node.
+     * @param specification The specification the distance is measured against.
      * @param stateNode The statePath required to measure.
      * @return The distance of the path.
      */
-    private double calcNodeDist(StateNode stateNode, String graphVer) {
-        Graph monitorGraph = specification.getMonitorGraph();
-        HashMap<String, String> labelNode = monitorGraph.findEdge(graphVer);
-        int nodeDist = monitorGraph.getVerDist(graphVer); // Current distance in the LTL graph
+    public double calcNodeDist(Specification specification, StateNode stateNode, String graphVer) {
+        MonitorTable table = monitorTable(specification);
+        int vertex = graphVer == stateNode.getGraphVer() ? table.vertexOf(stateNode) : table.vertexId(graphVer);
+        return calcNodeDist(table, stateNode, vertex, null, scoringEngine());
+    }
+
+    /**
+     * @param engine The rule chain engine of the detection depth, or null for the distance in the graph only.
+     */
+    private double calcNodeDist(MonitorTable table, StateNode stateNode, int vertex, NodeMemo memo,
+                                RuleChainEngine engine) {
+        Metrics.count(Metrics.Counter.NODE_SCORED);
+        if (stateNode.getLayout() != table.getLayout()) {
+            // The compiled conditions read slots by index, so a node of another layout is measured with tables
+            // compiled for its own.
+            MonitorTable own = monitorTable(table.getSpecification(), stateNode.getLayout());
+            vertex = own.vertexId(table.vertexName(vertex));
+            table = own;
+            engine = engine == null ? null : ruleChainEngine(engine.getDepth(), stateNode.getLayout());
+        }
+        int nodeDist = table.verDist(vertex); // Current distance in the LTL graph
         double condDist = 0;
-        for (String label : labelNode.keySet()) {
-            if (monitorGraph.getVerDist(labelNode.get(label)) == (nodeDist - 1)) {
-                // Take the maximum value of distances for different labels (to get the closest distance)
-                double accurate = accurateDist(label, stateNode);
-                condDist = Math.max(condDist, accurate);
+        if (engine != null && engine.getDepth() > 0) {
+            for (int edge = table.edgeStart(vertex); edge < table.edgeEnd(vertex); edge++) {
+                // Only edges one step closer are in the table; take the maximum value of distances for different
+                // labels (to get the closest distance)
+                condDist = Math.max(condDist, accurateDist(table.edgeConditions(edge), stateNode, engine, memo));
             }
         }
         return nodeDist - condDist;
     }
 
     /**
-     * Performs fine-grained quantization measurement.
+     * Performs fine-grained quantization measurement against the specification of the last election.
      * @param label The condition label (e.g., a0 && a1)
      * @param stateNode The state node
      */
     public double accurateDist(String label, StateNode stateNode) {
-        if (DETECTION_LAYER_NUM == 0) {
+        return accurateDist(specification, label, stateNode);
+    }
+
+    /**
+     * Performs fine-grained quantization measurement.
+     * @param specification The specification the label belongs to.
+     * @param label The condition label (e.g., a0 && a1)
+     * @param stateNode The state node
+     */
+    public double accurateDist(Specification specification, String label, StateNode stateNode) {
+        if (detectionLayerNum == 0) {
             return 0;
         }
-        List<Condition> conditions = new ArrayList<>();
-        String[] singleLabels = label.split("&&");
+        List<CondEvaluator> conditions = new ArrayList<>();
+        String[] singleLabels = MonitorTable.singleLabels(label);
         for (String singleLabel : singleLabels) {    // Conditions involved in the label, connected by 'and'
             if (specification.getIdToCond().get(singleLabel) != null) {
-                conditions.add(specification.getIdToCond().get(singleLabel));
+                conditions.add(stateNode.getLayout().evaluatorOf(specification.getIdToCond().get(singleLabel)));
             }
         }
-        List<Double> firstLevel = new ArrayList<>();
-        List<Double> subCondDist = new ArrayList<>();
-        for (Condition condition : conditions) { // && connection
-            double tempDist = conditionDist(condition, stateNode); // Calculate the length of the individual condition
-            firstLevel.add(tempDist);
-            if (DETECTION_LAYER_NUM > BASE_LAYER) {
-                subCondDist.add(seekRuleChain(condition, stateNode, BASE_LAYER)); // dfs
-            }
-        }
-        return calcByWeight(firstLevel, subCondDist);
+        return accurateDist(conditions.toArray(new CondEvaluator[0]), stateNode,
+                ruleChainEngine(detectionLayerNum, stateNode.getLayout()), null);
     }
 
     /**
-     * Performs weighted calculation based on the known lengths of the first layer and the remaining layers.
+     * Performs fine-grained quantization measurement of compiled conditions connected by 'and': the average
+     * distance of the conditions weighted as the first layer, plus the average distance through the rule chain.
      */
-    private double calcByWeight(List<Double> firstLevel, List<Double> subCondDist) {
-        OptionalDouble firDist = firstLevel.stream().mapToDouble(i -> i).average(); // to the & logic, we use average
-        if (!firDist.isPresent()) {
+    private double accurateDist(CondEvaluator[] conditions, StateNode stateNode, RuleChainEngine engine,
+                                NodeMemo memo) {
+        if (conditions.length == 0) {
             return 0;
-        } else {
-            double firDistPowered = firDist.getAsDouble() * weightCalc(BASE_LAYER);
-            if (!subCondDist.isEmpty()) {
-                OptionalDouble leftDist = subCondDist.stream().mapToDouble(i -> i).average();
-                if (leftDist.isPresent()) {
-                    return leftDist.getAsDouble() + firDistPowered;
-                }
-            }
-            return firDistPowered;
         }
-    }
-
-    /**
-     * Detect the rule chain for more detailed distance with a specific condition given.
-     * @param condition Given condition for calculating the specific distance from current situation to fulfilling the condition.
-     * @param stateNode Given stateNode which offers the necessary information of env-dynamics and devices.
-     * @param cur_pos Current depth of detection.
-     * @return The specific distance from current situation to fulfilling the condition through detection driven by ruleChain.
-     */
-    private double seekRuleChain(Condition condition, StateNode stateNode, int cur_pos) {
-        if (RuleChain.ruleChain.containsKey(condition)) { // Starting from a single condition, find predecessors in the chain
-            List<Rule> rules = RuleChain.ruleChain.get(condition); // A series of predecessors connected by ||
-            OptionalDouble setDistOpt = rules.stream().map(i -> seekDown(i, cur_pos + 1, stateNode)).mapToDouble(i -> i).max(); // Recursively apply for each rule, take the maximum value as the final result
-            return setDistOpt.isPresent() ? setDistOpt.getAsDouble() : 0;
-        } else {
-            return 0;
+        double firstLevel = 0;
+        double subCondDist = 0;
+        for (CondEvaluator condition : conditions) { // && connection
+            // Calculate the length of the individual condition
+            firstLevel += memo == null ? condition.dist(stateNode) : memo.dist(condition, stateNode);
+            if (engine.getDepth() > BASE_LAYER) {
+                subCondDist += engine.seekRuleChain(condition, stateNode, BASE_LAYER); // dfs
+            }
         }
+        // to the & logic, we use average
+        return firstLevel / conditions.length * engine.weight(BASE_LAYER) + subCondDist / conditions.length;
     }
 
     /**
@@ -180,28 +854,7 @@ public class DistMeasurement {
      * @return The specific distance from current situation to fulfilling the rule's conditions.
      */
     public double seekDown(Rule rule, int depthCount, StateNode stateNode) {
-        if (depthCount > BASE_LAYER) {
-            return 0;
-        }
-        double finalDist;
-        OptionalDouble levelDist = rule.getConditions()
-                .stream().map(i -> conditionDist(i, stateNode)).mapToDouble(i -> i).average(); // in current layer, rule's "and" connections have to be coped with average
-        finalDist = levelDist.isPresent() ? levelDist.getAsDouble() * weightCalc(depthCount) : 0; // weight
-
-        double subDist = 0;
-        if (!rule.getConditions().isEmpty()) {
-            List<Double> conditionDist = new ArrayList<>();
-            for (Condition condition : rule.getConditions()) {
-                // Continue the predecessor DFS, similar to the operation when calculating the first layer of the entire node, where the condition is all the conditions in the rule connected by &&
-                double setDist = seekRuleChain(condition, stateNode, depthCount);
-                if (setDist > 0) // If it's 0, it means there are no relevant conditions
-                    conditionDist.add(setDist);
-            }
-            OptionalDouble subDistOpt = conditionDist.stream().mapToDouble(i -> i).average(); // "&&" with average
-            subDist = subDistOpt.isPresent() ? subDistOpt.getAsDouble() : 0;
-        }
-
-        return finalDist + subDist;
+        return ruleChainEngine(detectionLayerNum, stateNode.getLayout()).seekDown(rule, depthCount, stateNode);
     }
 
     /**
@@ -211,55 +864,106 @@ public class DistMeasurement {
      * @return The distance.
      */
     public double conditionDist(Condition condition, StateNode stateNode) {
-        double tempDist = 0;
-        String name = condition.getDeviceVar();
-        String val = condition.getVariableVal();
-        String nowVal = stateNode.findVar(condition.getDeviceName(), condition.getDeviceVar(),
-                condition.getCheckTrust(), condition.getCheckPrivacy());
-        try {
-            double dVal = Double.parseDouble(val);
-            double dNowVal = Double.parseDouble(nowVal);
-            EnvInstance envInstance;
-            if ((envInstance = stateNode.findEnvInstance(name)) != null) {
-                tempDist = calcCondDistDouble(envInstance.getEnvDynamics(), dVal, dNowVal, condition.getCompare());
-            }
-            return tempDist;
-        } catch (Exception e) {
-            return (condition.getCompare().equals(Compare.EQUAL) && nowVal.equals(val)) ||
-                    (condition.getCompare().equals(Compare.NO_EQUAL) && !nowVal.equals(val)) ? 1 : 0;
-        }
-    }
-
-    /**
-     * Calculates the distance for a condition with double type values.
-     * @param envDynamics The environment dynamics.
-     * @param dVal The target value of the condition.
-     * @param dNowVal The current value of the condition.
-     * @param compare The comparison operator for the condition.
-     * @return The calculated distance for the condition.
-     */
-    private double calcCondDistDouble(EnvDynamics envDynamics, double dVal, double dNowVal, Compare compare) {
-        double tempDist;
-        double up = Double.parseDouble(envDynamics.getUpperBound());
-        double low = Double.parseDouble(envDynamics.getLowerBound());
-        if (dVal < dNowVal && Compare.judgeLE(compare)) {
-            tempDist = 1 - Math.abs(dNowVal - dVal) / (up - dVal);
-        } else if (dVal > dNowVal && Compare.judgeGE(compare)) {
-            tempDist = 1 - Math.abs(dNowVal - dVal) / (dVal - low);
-        } else if ((dVal != dNowVal) && !compare.equals(Compare.EQUAL)) {
-            tempDist = 1;
-        } else {
-            tempDist = 0;
+        return stateNode.getLayout().evaluatorOf(condition).dist(stateNode);
+    }
+
+    /**
+     * Condition distances of one node, indexed by evaluator id; an entry is valid when its stamp is current.
+     * When projecting, state i of the stepper holds the env values of the i-th node projected, counted from
+     * the first node loaded.
+     */
+    private static final class NodeMemo {
+        private double[] dists = new double[0];
+        private int[] stamps = new int[0];
+        private int stamp;
+
+        private EnvStepper stepper;
+        private boolean projecting;
+        private int state;
+
+        /**
+         * Loads the nodes from the index on into the stepper and advances them, batching the projection of
+         * the whole path.
+         */
+        void project(List<StateNode> stateNodes, int from, int steps) {
+            projecting = false;
+            if (steps <= 0 || from >= stateNodes.size()) {
+                return;
+            }
+            StateLayout layout = stateNodes.get(from).getLayout();
+            if (stepper == null || stepper.getLayout() != layout) {
+                stepper = new EnvStepper(layout);
+            }
+            stepper.clear();
+            for (int i = from; i < stateNodes.size(); i++) {
+                if (stateNodes.get(i).getLayout() != layout) {
+                    return;
+                }
+                stepper.add(stateNodes.get(i));
+            }
+            stepper.step(steps);
+            projecting = true;
+        }
+
+        void reset(StateNode stateNode, int state) {
+            this.state = state;
+            int count = stateNode.getLayout().evaluatorCount();
+            if (count > dists.length) {
+                dists = new double[count];
+                stamps = new int[count];
+                stamp = 0;
+            }
+            if (++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+        }
+
+        double dist(CondEvaluator condition, StateNode stateNode) {
+            int id = condition.getId();
+            if (id >= dists.length) {
+                return measure(condition, stateNode);
+            }
+            if (stamps[id] != stamp) {
+                dists[id] = measure(condition, stateNode);
+                stamps[id] = stamp;
+            }
+            return dists[id];
+        }
+
+        private double measure(CondEvaluator condition, StateNode stateNode) {
+            double dist = condition.dist(stateNode);
+            int env = condition.getSlot().getEnv();
+            if (projecting && env >= 0) {
+                dist = Math.max(dist, condition.projectedDist(stateNode.envValue(env), stepper.value(state, env)));
+            }
+            return dist;
         }
-        return tempDist;
     }
 
     /**
-     * Calculates the weight based on the position in the sequence.
-     * @param pos The position in the sequence.
-     * @return The calculated weight.
+     * The monitor tables and rule chain engines compiled against a layout other than the current one.
      */
-    private double weightCalc(int pos) {
-        return powerMap.get(DETECTION_LAYER_NUM - pos) / powerMap.get(DETECTION_LAYER_NUM);
+    private static final class OtherLayout {
+        private final StateLayout layout;
+        private final Map<Specification, MonitorTable> monitorTables = new IdentityHashMap<>();
+        private final Map<Integer, RuleChainEngine> engines = new HashMap<>();
+
+        OtherLayout(StateLayout layout) {
+            this.layout = layout;
+        }
+
+        synchronized MonitorTable monitorTable(Specification specification) {
+            return monitorTables.computeIfAbsent(specification, s -> new MonitorTable(s, layout));
+        }
+
+        synchronized RuleChainEngine engine(Map<Condition, List<Rule>> ruleChain, int depth) {
+            RuleChainEngine engine = engines.get(depth);
+            if (engine == null || !engine.builtFor(ruleChain, layout, depth)) {
+                engine = new RuleChainEngine(ruleChain, layout, depth);
+                engines.put(depth, engine);
+            }
+            return engine;
+        }
     }
 }
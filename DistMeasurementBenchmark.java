@@ -0,0 +1,88 @@
+package Bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import Common.Rule.Rule;
+import Mutate.DistMeasurement;
+import StatePath.StateNode;
+import StatePath.StatePath;
+
+/**
+ * Throughput of path election and of the distance measurements behind it, over synthetic paths.
+ * With the cache enabled, the paths are unchanged between invocations, so pathVoter measures the cost of an
+ * election where nothing has to be scored again; without it, every node is scored on every election.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistMeasurementBenchmark {
+    @Param({"4", "16", "64"})
+    public int deviceCount;
+
+    @Param({"10", "50"})
+    public int pathLength;
+
+    @Param({"1", "3", "5"})
+    public int detectionDepth;
+
+    @Param({"100"})
+    public int pathCount;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private BenchFixtures fixtures;
+    private DistMeasurement distMeasurement;
+    private List<StatePath> paths;
+    private StateNode[] nodes;
+    private Rule[] rules;
+    private String label;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixtures = BenchFixtures.install(deviceCount, 8, pathLength, detectionDepth);
+        distMeasurement = DistMeasurement.getInstance();
+        distMeasurement.setDetectionDepth(detectionDepth);
+        distMeasurement.setParallelism(1);
+        distMeasurement.setCacheCapacity(cached ? 1 << 18 : 0, cached ? 1 << 14 : 0);
+        distMeasurement.getSeedScheduler().setSeed(1);
+        paths = fixtures.paths(pathCount, pathLength, 1);
+        List<StateNode> all = new ArrayList<>();
+        for (StatePath path : paths) {
+            all.addAll(path.getStateNodes());
+        }
+        nodes = all.toArray(new StateNode[0]);
+        rules = fixtures.rules.toArray(new Rule[0]);
+        label = "a0&&a1";
+        // The first election compiles the conditions and the monitor table.
+        distMeasurement.pathVoter(fixtures.specification, paths);
+    }
+
+    private int next(int bound) {
+        return (next++ & Integer.MAX_VALUE) % bound;
+    }
+
+    @Benchmark
+    public StatePath pathVoter() {
+        return distMeasurement.pathVoter(fixtures.specification, paths);
+    }
+
+    @Benchmark
+    public double accurateDist() {
+        return distMeasurement.accurateDist(fixtures.specification, label, nodes[next(nodes.length)]);
+    }
+
+    @Benchmark
+    public void seekDown(Blackhole blackhole) {
+        StateNode node = nodes[next(nodes.length)];
+        for (Rule rule : rules) {
+            blackhole.consume(distMeasurement.seekDown(rule, 1, node));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package StatePath;
+
+import java.util.List;
+
+/**
+ * Advances the environment variables of many state nodes at once, for looking ahead at where the continuous
+ * variables are heading. The values and change rates are held as doubles in structure-of-arrays buffers, one
+ * column per env slot with a row per state, so a step is a single pass over contiguous primitive arrays.
+ * A step adds the change rate to the value and keeps it within the bounds of the variable's dynamics, as an
+ * env instance does on {@link StateNode#nextClone()}.
+ */
+public final class EnvStepper {
+    private final StateLayout layout;
+    private final int envCount;
+
+    /**
+     * The bounds of each env slot, infinite when the dynamics have none.
+     */
+    private final double[] upper;
+    private final double[] lower;
+
+    /**
+     * Slot e of state s is at e * capacity + s.
+     */
+    private double[] values;
+    private double[] rates;
+    private int capacity;
+    private int size;
+
+    public EnvStepper(StateLayout layout) {
+        this.layout = layout;
+        this.envCount = layout.envCount();
+        upper = new double[envCount];
+        lower = new double[envCount];
+        for (int e = 0; e < envCount; e++) {
+            upper[e] = Double.isNaN(layout.envUpper(e)) ? Double.POSITIVE_INFINITY : layout.envUpper(e);
+            lower[e] = Double.isNaN(layout.envLower(e)) ? Double.NEGATIVE_INFINITY : layout.envLower(e);
+        }
+        capacity = 16;
+        values = new double[envCount * capacity];
+        rates = new double[envCount * capacity];
+    }
+
+    public StateLayout getLayout() {
+        return layout;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Clears the stepper and adds the nodes, the i-th node becoming state i.
+     */
+    public void load(List<StateNode> stateNodes) {
+        clear();
+        for (StateNode stateNode : stateNodes) {
+            add(stateNode);
+        }
+    }
+
+    /**
+     * Adds the current env values and change rates of the node. Values which are not numbers stay NaN, and
+     * rates which are not numbers count as 0.
+     * @return The index of the state.
+     */
+    public int add(StateNode stateNode) {
+        if (size == capacity) {
+            grow();
+        }
+        for (int e = 0; e < envCount; e++) {
+            values[e * capacity + size] = stateNode.envValue(e);
+            double rate = stateNode.envRate(e);
+            rates[e * capacity + size] = Double.isNaN(rate) ? 0 : rate;
+        }
+        return size++;
+    }
+
+    /**
+     * Advances every state by the number of steps. As the rates are constant, clamping once after all the
+     * steps is the same as clamping after each of them.
+     * The inner loop is a branch-free pass over primitive arrays, which the JIT compiles to SIMD code.
+     */
+    public void step(int steps) {
+        for (int e = 0; e < envCount; e++) {
+            double lo = lower[e];
+            double hi = upper[e];
+            int base = e * capacity;
+            for (int i = base; i < base + size; i++) {
+                values[i] = Math.min(Math.max(values[i] + rates[i] * steps, lo), hi);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the env slot in the state, NaN if it is not a number.
+     */
+    public double value(int state, int env) {
+        return values[env * capacity + state];
+    }
+
+    private void grow() {
+        int grown = capacity * 2;
+        double[] newValues = new double[envCount * grown];
+        double[] newRates = new double[envCount * grown];
+        for (int e = 0; e < envCount; e++) {
+            System.arraycopy(values, e * capacity, newValues, e * grown, size);
+            System.arraycopy(rates, e * capacity, newRates, e * grown, size);
+        }
+        values = newValues;
+        rates = newRates;
+        capacity = grown;
+    }
+}
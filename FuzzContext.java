@@ -0,0 +1,267 @@
+package Core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import Common.Device.Device;
+import Common.EnvDynamics.EnvDynamics;
+import Common.Rule.Condition.Condition;
+import Common.Rule.Rule;
+import Common.Template.DevicePool;
+import Common.Template.EnvPool;
+import Mutate.DistMeasurement;
+import Mutate.GuardIndex;
+import RuleChain.RuleChain;
+import Specification.Specification;
+import StatePath.StateCodec;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+import StatePath.StatePath;
+import StatePath.TraceStore;
+import StatePath.TriggerIndex;
+
+/**
+ * Everything a fuzzing campaign reads and writes: the device and environment variable pools, the rule chain,
+ * the specification, the candidate paths, and the distance engine and indexes built on them.
+ * Campaigns with their own contexts share no mutable state, so they can run concurrently in one JVM.
+ * The {@link #global()} context is backed by the static pools and singletons, for code that predates contexts.
+ */
+public class FuzzContext {
+    private static final FuzzContext GLOBAL = new FuzzContext(true, null, null, null, null);
+
+    private final boolean global;
+    private final Map<String, Device> devicePool;
+    private final Set<EnvDynamics> envPool;
+    private final Map<Condition, List<Rule>> ruleChain;
+    private volatile Specification specification;
+    private final List<StatePath> statePaths = new ArrayList<>();
+
+    private volatile StateLayout layout;
+    private volatile DistMeasurement distMeasurement;
+    private volatile GuardIndex guardIndex;
+    private volatile TriggerIndex triggerIndex;
+
+    /**
+     * Where the cold candidate paths are spilled after each election, and how many are kept on the heap.
+     */
+    private volatile TraceStore traceStore;
+    private volatile int hotCapacity;
+
+    /**
+     * Whether the state nodes of the context record the writes which built them, see {@link #setJournaling}.
+     */
+    private volatile boolean journaling;
+
+    private FuzzContext(boolean global, Map<String, Device> devicePool, Set<EnvDynamics> envPool,
+                        Map<Condition, List<Rule>> ruleChain, Specification specification) {
+        this.global = global;
+        this.devicePool = devicePool;
+        this.envPool = envPool;
+        this.ruleChain = ruleChain;
+        this.specification = specification;
+    }
+
+    /**
+     * Creates a context owning the given pools, rule chain and specification. They shall not be modified once
+     * the campaign has started.
+     */
+    public FuzzContext(Map<String, Device> devicePool, Set<EnvDynamics> envPool,
+                       Map<Condition, List<Rule>> ruleChain, Specification specification) {
+        this(false, devicePool, envPool, ruleChain, specification);
+    }
+
+    /**
+     * Creates a context owning the given pools, with the specification and rule chain compiled under the key,
+     * and the monitor table of the specification already built for the pools.
+     * @return The context, or null if the cache holds no readable artifact under the key.
+     */
+    public static FuzzContext load(CompiledCache cache, byte[] key, Map<String, Device> devicePool,
+                                   Set<EnvDynamics> envPool) {
+        CompiledCache.Compiled compiled = cache.load(key);
+        if (compiled == null) {
+            return null;
+        }
+        FuzzContext context = new FuzzContext(devicePool, envPool, compiled.getRuleChain(),
+                compiled.getSpecification());
+        context.getDistMeasurement().putMonitorTable(compiled.monitorTable(context.getLayout()));
+        return context;
+    }
+
+    /**
+     * Returns the context of the static pools, rule chain and core.
+     */
+    public static FuzzContext global() {
+        return GLOBAL;
+    }
+
+    public boolean isGlobal() {
+        return global;
+    }
+
+    public Map<String, Device> getDevicePool() {
+        return global ? DevicePool.usedDevices : devicePool;
+    }
+
+    public Set<EnvDynamics> getEnvPool() {
+        return global ? EnvPool.envDynamicsSet : envPool;
+    }
+
+    public Map<Condition, List<Rule>> getRuleChain() {
+        return global ? RuleChain.ruleChain : ruleChain;
+    }
+
+    public Specification getSpecification() {
+        return specification;
+    }
+
+    public void setSpecification(Specification specification) {
+        this.specification = specification;
+    }
+
+    /**
+     * Returns the candidate paths of the campaign: those of the core for the global context.
+     */
+    public List<StatePath> getStatePaths() {
+        return global ? Core.getCoreInstance().getStatePaths() : statePaths;
+    }
+
+    /**
+     * Writes the candidate paths to a checkpoint file, for resuming the campaign after it stops. Only paths of
+     * journaled nodes are written, see {@link #setJournaling}.
+     * @return The number of paths written; see {@link StateCodec#writeCheckpoint}.
+     */
+    public int checkpoint(Path file) throws IOException {
+        return StateCodec.writeCheckpoint(file, getStatePaths(), getLayout());
+    }
+
+    /**
+     * Replaces the candidate paths with those of a checkpoint file.
+     * @return The restored paths.
+     */
+    public List<StatePath> restore(Path file) throws IOException {
+        List<StatePath> restored = StateCodec.readCheckpoint(file, getLayout());
+        getStatePaths().clear();
+        getStatePaths().addAll(restored);
+        return restored;
+    }
+
+    /**
+     * Returns the layout of the context's pools, compiling it again if the pools have changed.
+     */
+    public StateLayout getLayout() {
+        if (global) {
+            return StateLayout.current();
+        }
+        StateLayout current = layout;
+        if (current == null || !current.builtFrom(devicePool, envPool)) {
+            synchronized (this) {
+                current = layout;
+                if (current == null || !current.builtFrom(devicePool, envPool)) {
+                    current = StateLayout.compile(devicePool, envPool);
+                    layout = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Spills the candidate paths beyond the hot capacity to the store after each election, farthest first;
+     * null (the default) keeps every path on the heap. The store shall be of the context's layout.
+     */
+    public void setTraceStore(TraceStore traceStore, int hotCapacity) {
+        this.traceStore = traceStore;
+        this.hotCapacity = hotCapacity;
+        if (traceStore != null) {
+            journaling = true;
+        }
+    }
+
+    /**
+     * Returns the store of the cold paths, whose cursor streams them back, or null if paths are not spilled.
+     */
+    public TraceStore getTraceStore() {
+        return traceStore;
+    }
+
+    public int getHotCapacity() {
+        return hotCapacity;
+    }
+
+    /**
+     * Makes the state nodes created from now on, and their clones, record the writes which built them, which
+     * is what the trace store, the corpus sync and checkpoints encode them from. Off by default; setting a
+     * trace store or starting a corpus sync turns it on.
+     */
+    public void setJournaling(boolean journaling) {
+        this.journaling = journaling;
+    }
+
+    public boolean isJournaling() {
+        return journaling;
+    }
+
+    /**
+     * Returns the guards of the specification indexed by the variables they read, for advancing the monitor
+     * incrementally, built again if the specification or the layout has changed.
+     */
+    public GuardIndex getGuardIndex() {
+        Specification current = specification;
+        StateLayout currentLayout = getLayout();
+        GuardIndex index = guardIndex;
+        if (index == null || !index.builtFor(current, currentLayout)) {
+            index = new GuardIndex(current, currentLayout);
+            guardIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the rules of the rule chain indexed by the variables they watch, built again if the layout has
+     * changed. The triggers of device transitions are registered by whoever steps the devices.
+     */
+    public TriggerIndex getTriggerIndex() {
+        StateLayout currentLayout = getLayout();
+        TriggerIndex index = triggerIndex;
+        if (index == null || index.getLayout() != currentLayout) {
+            synchronized (this) {
+                index = triggerIndex;
+                if (index == null || index.getLayout() != currentLayout) {
+                    index = new TriggerIndex(currentLayout);
+                    if (getRuleChain() != null) {
+                        index.addRules(getRuleChain());
+                    }
+                    triggerIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns a fresh state node of the context's layout.
+     */
+    public StateNode newStateNode() {
+        return new StateNode(this);
+    }
+
+    /**
+     * Returns the distance engine of the context: the singleton for the global context.
+     */
+    public DistMeasurement getDistMeasurement() {
+        if (global) {
+            return DistMeasurement.getInstance();
+        }
+        DistMeasurement current = distMeasurement;
+        if (current == null) {
+            synchronized (this) {
+                current = distMeasurement;
+                if (current == null) {
+                    current = new DistMeasurement(this);
+                    distMeasurement = current;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,43 @@
+package Util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events of the fuzzing rounds. They are only created when {@link Metrics#ENABLED} is set,
+ * and only recorded when a recording enables them, e.g. -XX:StartFlightRecording with the default settings.
+ */
+public final class FuzzEvents {
+    private FuzzEvents() {
+    }
+
+    @Name("fuzz.PathElection")
+    @Label("Path Election")
+    @Category("Fuzzing")
+    @Description("Election of the state path to mutate next")
+    public static final class PathElection extends Event {
+        @Label("Candidate Paths")
+        public int pathCount;
+
+        @Label("Selected Distance")
+        public double selectedDist;
+    }
+
+    @Name("fuzz.PathScoring")
+    @Label("Path Scoring")
+    @Category("Fuzzing")
+    @Description("Scoring of the candidate state paths against the specifications")
+    public static final class PathScoring extends Event {
+        @Label("Paths")
+        public int pathCount;
+
+        @Label("Specifications")
+        public int specificationCount;
+
+        @Label("Cached")
+        public boolean cached;
+    }
+}
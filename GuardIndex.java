@@ -0,0 +1,210 @@
+package Mutate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import Common.Rule.Condition.Condition;
+import Specification.Specification;
+import StatePath.CondEvaluator;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+import StatePath.VarSlot;
+import Util.CoverageMap;
+import Util.Metrics;
+
+/**
+ * The guards of a specification's monitor, compiled for evaluating them incrementally as the monitor advances:
+ * an index from each variable slot to the conditions reading it, so that after a step only the conditions on
+ * the variables the step changed are judged again, and the others keep the results of the previous node.
+ */
+public class GuardIndex {
+    private final Specification specification;
+    private final StateLayout layout;
+
+    /**
+     * Condition id -> label id in the specification, and compiled condition.
+     */
+    private final Map<String, Integer> condIds = new HashMap<>();
+    private final CondEvaluator[] conditions;
+
+    /**
+     * Slot (devices first, then envs) -> ids of the conditions reading it.
+     */
+    private final int[][] slotConds;
+
+    /**
+     * Labels already split into condition ids; -1 for an id the specification does not define.
+     */
+    private final Map<String, int[]> labels = new ConcurrentHashMap<>();
+
+    public GuardIndex(Specification specification, StateLayout layout) {
+        this.specification = specification;
+        this.layout = layout;
+        List<CondEvaluator> evaluators = new ArrayList<>();
+        if (specification.getIdToCond() != null) {
+            // Sorted so that the condition ids do not depend on hashing.
+            for (Map.Entry<String, Condition> entry : new TreeMap<>(specification.getIdToCond()).entrySet()) {
+                condIds.put(entry.getKey(), evaluators.size());
+                evaluators.add(layout.evaluatorOf(entry.getValue()));
+            }
+        }
+        conditions = evaluators.toArray(new CondEvaluator[0]);
+        List<List<Integer>> dependents = new ArrayList<>();
+        for (int i = 0; i < layout.deviceCount() + layout.envCount(); i++) {
+            dependents.add(new ArrayList<>());
+        }
+        for (int c = 0; c < conditions.length; c++) {
+            VarSlot slot = conditions[c].getSlot();
+            if (slot.getKind() == VarSlot.ENV) {
+                dependents.get(layout.deviceCount() + slot.getEnv()).add(c);
+            } else if (slot.getKind() != VarSlot.MISSING) {
+                dependents.get(slot.getDevice()).add(c);
+            }
+        }
+        slotConds = new int[dependents.size()][];
+        for (int i = 0; i < slotConds.length; i++) {
+            slotConds[i] = dependents.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    public boolean builtFor(Specification specification, StateLayout layout) {
+        return this.specification == specification && this.layout == layout;
+    }
+
+    /**
+     * Judges every guard condition on the node.
+     * @param stateNode The node the monitor advances to.
+     * @param preNode The node it advances from, for the continuous judgments; null for the first node.
+     * @param previous The results on preNode, reused for the conditions whose variables the step did not change;
+     *                 null to judge every condition. Every condition is judged again if they were judged on
+     *                 another node, or on preNode before it was last written.
+     */
+    public GuardState evaluate(StateNode stateNode, StateNode preNode, GuardState previous) {
+        return evaluate(stateNode, preNode, previous, null);
+    }
+
+    /**
+     * Judges every guard condition on the node, recording the outcome of each condition judged in the trace.
+     */
+    public GuardState evaluate(StateNode stateNode, StateNode preNode, GuardState previous, CoverageMap.Sink trace) {
+        int words = (conditions.length + 63) >>> 6;
+        GuardState state = new GuardState(this, stateNode, preNode, words);
+        if (previous == null || previous.index != this || preNode == null || !previous.judgedOn(preNode)
+                || !stateNode.steppedFrom(previous.stepId)) {
+            for (int c = 0; c < conditions.length; c++) {
+                judge(state, c, stateNode, preNode, trace);
+            }
+            Metrics.count(Metrics.Counter.GUARD_JUDGED, conditions.length);
+            return state;
+        }
+        // A condition whose variable has not changed holds as it did, and cannot have crossed its target.
+        System.arraycopy(previous.judged, 0, state.judged, 0, words);
+        System.arraycopy(previous.judged, 0, state.continued, 0, words);
+        int judged = 0;
+        for (int slot = stateNode.nextDirtySlot(0); slot >= 0 && slot < slotConds.length;
+             slot = stateNode.nextDirtySlot(slot + 1)) {
+            for (int c : slotConds[slot]) {
+                judge(state, c, stateNode, preNode, trace);
+                judged++;
+            }
+        }
+        Metrics.count(Metrics.Counter.GUARD_JUDGED, judged);
+        Metrics.count(Metrics.Counter.GUARD_REUSED, conditions.length - judged);
+        return state;
+    }
+
+    private void judge(GuardState state, int c, StateNode stateNode, StateNode preNode, CoverageMap.Sink trace) {
+        boolean holds = conditions[c].judge(stateNode);
+        boolean continued = holds || preNode != null && conditions[c].judgeContinue(stateNode, preNode);
+        set(state.judged, c, holds);
+        set(state.continued, c, continued);
+        if (trace != null) {
+            trace.hit(CoverageMap.GUARD, c, (holds ? 1 : 0) | (continued ? 2 : 0));
+        }
+    }
+
+    private static void set(long[] bits, int i, boolean value) {
+        if (value) {
+            bits[i >>> 6] |= 1L << i;
+        } else {
+            bits[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    private int[] label(String label) {
+        return labels.computeIfAbsent(label, l -> {
+            String[] singleLabels = MonitorTable.singleLabels(l);
+            int[] ids = new int[singleLabels.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = condIds.getOrDefault(singleLabels[i], -1);
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * The results of the guard conditions on one node.
+     */
+    public static final class GuardState {
+        private final GuardIndex index;
+
+        /**
+         * The node the conditions were judged on and the node before it, each by its step id and its
+         * modification count then; -1 for no node before.
+         */
+        private final long stepId;
+        private final int modCount;
+        private final long preStepId;
+        private final int preModCount;
+
+        private final long[] judged;
+        private final long[] continued;
+
+        private GuardState(GuardIndex index, StateNode stateNode, StateNode preNode, int words) {
+            this.index = index;
+            this.stepId = stateNode.getStepId();
+            this.modCount = stateNode.getModCount();
+            this.preStepId = preNode == null ? -1 : preNode.getStepId();
+            this.preModCount = preNode == null ? -1 : preNode.getModCount();
+            this.judged = new long[words];
+            this.continued = new long[words];
+        }
+
+        /**
+         * Returns whether the results are those of the node in its current state.
+         */
+        public boolean judgedOn(StateNode stateNode) {
+            return stepId == stateNode.getStepId() && modCount == stateNode.getModCount();
+        }
+
+        /**
+         * Returns whether the results are those of the node after the pre-node, both in their current state.
+         */
+        public boolean judgedOn(StateNode stateNode, StateNode preNode) {
+            return judgedOn(stateNode) && (preNode == null ? preStepId < 0
+                    : preStepId == preNode.getStepId() && preModCount == preNode.getModCount());
+        }
+
+        /**
+         * Returns whether the condition with the id holds on the node, with judgeCond or, if continuous, with
+         * judgeContinueCond.
+         */
+        public boolean holds(String condId, boolean continuous) {
+            Integer c = index.condIds.get(condId);
+            return c != null && ((continuous ? continued : judged)[c >>> 6] & 1L << c) != 0;
+        }
+
+        /**
+         * Returns whether every condition of the label (e.g., a0 && a1) holds; ids the specification does not
+         * define put no constraint.
+         */
+        public boolean holdsLabel(String label, boolean continuous) {
+            long[] bits = continuous ? continued : judged;
+            for (int c : index.label(label)) {
+                if (c >= 0 && (bits[c >>> 6] & 1L << c) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
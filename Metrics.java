@@ -0,0 +1,258 @@
+package Util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Counters and latency histograms of the fuzzing hot paths.
+ * Instrumentation is off unless the JVM is started with -Dfuzz.metrics=true; since the switch is a static final
+ * constant, the JIT removes the instrumented branches entirely when it is off.
+ */
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("fuzz.metrics");
+
+    public enum Counter {
+        NODE_CREATED,
+        NEXT_CLONE,
+        CLONE,
+        /**
+         * Shared device or env instances copied before their first write.
+         */
+        INSTANCE_COPY,
+        FIND_VAR,
+        /**
+         * Lookups of a device, env variable or device variable which is not in the node.
+         */
+        FIND_VAR_MISS,
+        /**
+         * Condition distances / continuous judgments which could not compare numerically and fell back to
+         * comparing strings.
+         */
+        COND_DIST_FALLBACK,
+        CONTINUE_COND_FALLBACK,
+        /**
+         * Rule chain expansions which were not served by the per-node memo.
+         */
+        RULE_CHAIN_SEEK,
+        NODE_SCORED,
+        NODE_CACHE_HIT,
+        PATH_CACHE_HIT,
+        ELECTION,
+        /**
+         * Monitor guard conditions judged again after a step, and reused from the previous node.
+         */
+        GUARD_JUDGED,
+        GUARD_REUSED,
+        /**
+         * Triggers and rules judged after a step, and skipped as they watch no variable the step changed.
+         */
+        TRIGGER_JUDGED,
+        TRIGGER_SKIPPED,
+        /**
+         * Elections won by a path for covering new behaviour rather than for its distance.
+         */
+        NOVEL_ELECTION
+    }
+
+    public enum Histogram {
+        /**
+         * Nanoseconds spent electing a path, and scoring the candidate paths.
+         */
+        ELECTION_NANOS,
+        SCORING_NANOS,
+        /**
+         * The depth reached by each rule chain expansion.
+         */
+        RULE_CHAIN_DEPTH,
+        /**
+         * The detection depth anytime scoring completed within its budget in each election.
+         */
+        ANYTIME_DEPTH
+    }
+
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private static final LogHistogram[] histograms = new LogHistogram[Histogram.values().length];
+
+    static {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LogHistogram();
+        }
+    }
+
+    private static ScheduledExecutorService reporter;
+
+    private Metrics() {
+    }
+
+    public static void count(Counter counter) {
+        if (ENABLED) {
+            counters[counter.ordinal()].increment();
+        }
+    }
+
+    public static void count(Counter counter, long n) {
+        if (ENABLED) {
+            counters[counter.ordinal()].add(n);
+        }
+    }
+
+    public static void record(Histogram histogram, long value) {
+        if (ENABLED) {
+            histograms[histogram.ordinal()].record(value);
+        }
+    }
+
+    /**
+     * Returns a timestamp to pass to {@link #recordSince}, or 0 when disabled.
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public static void recordSince(Histogram histogram, long start) {
+        if (ENABLED) {
+            histograms[histogram.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public static long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall, within 1/8 of it.
+     */
+    public static long percentile(Histogram histogram, double fraction) {
+        return histograms[histogram.ordinal()].percentile(fraction);
+    }
+
+    public static void reset() {
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+        for (LogHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns the counters and histogram percentiles as a single line for the campaign log.
+     */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder("metrics");
+        for (Counter counter : Counter.values()) {
+            sb.append(' ').append(counter.name().toLowerCase()).append('=').append(get(counter));
+        }
+        for (Histogram histogram : Histogram.values()) {
+            LogHistogram h = histograms[histogram.ordinal()];
+            sb.append(' ').append(histogram.name().toLowerCase())
+                    .append("={n=").append(h.count())
+                    .append(" p50=").append(h.percentile(0.5))
+                    .append(" p99=").append(h.percentile(0.99))
+                    .append(" max=").append(h.max()).append('}');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a snapshot to the sink periodically, from a daemon thread; replaces any previous reporter.
+     * Does nothing when disabled.
+     */
+    public static synchronized void startReporter(long period, TimeUnit unit, Consumer<String> sink) {
+        stopReporter();
+        if (!ENABLED) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> sink.accept(snapshot()), period, period, unit);
+    }
+
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter = null;
+        }
+    }
+
+    /**
+     * A histogram of non-negative values in log-linear buckets: each power of two is split into 8 buckets, so a
+     * value is known within 1/8 of itself, as in HDR histograms with one significant digit.
+     */
+    private static final class LogHistogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            max.accumulate(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double fraction) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            max.reset();
+        }
+
+        /**
+         * Values below 8 have a bucket each; above, the bucket is given by the highest bit and the 3 bits below it.
+         */
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package Mutate;
+
+import java.util.*;
+import Common.Rule.Condition.Condition;
+import Specification.Graph.Graph;
+import Specification.Specification;
+import StatePath.CondEvaluator;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+
+/**
+ * The monitor graph of a specification compiled into integer tables: vertex ids, the distance of each vertex to
+ * the violating vertex, and in CSR form the edges which lead one step closer to it, each with its label already
+ * split into compiled conditions.
+ * The graph is explored from the vertices the state nodes are found in, and the tables grow as new vertices
+ * are reached.
+ */
+public class MonitorTable {
+    private final Specification specification;
+    private final Graph graph;
+    private final StateLayout layout;
+
+    /**
+     * The conditions of the specification compiled against the layout, from which the edge labels are compiled.
+     */
+    private final Map<Condition, CondEvaluator> evaluators;
+
+    /**
+     * The current tables, replaced as a whole when vertices are added.
+     */
+    private volatile Tables tables = new Tables(0, 0);
+
+    public MonitorTable(Specification specification, StateLayout layout) {
+        this(specification, layout, CondEvaluator.compileAll(layout, specification, null));
+    }
+
+    /**
+     * @param evaluators The conditions of the specification compiled against the layout, e.g. by
+     *                   {@link CondEvaluator#compileAll}.
+     */
+    public MonitorTable(Specification specification, StateLayout layout, Map<Condition, CondEvaluator> evaluators) {
+        this.specification = specification;
+        this.graph = specification.getMonitorGraph();
+        this.layout = layout;
+        this.evaluators = evaluators;
+    }
+
+    boolean builtFor(StateLayout layout) {
+        return this.layout == layout;
+    }
+
+    public Specification getSpecification() {
+        return specification;
+    }
+
+    /**
+     * Returns the layout the edge conditions were compiled against, which only nodes of that layout can be
+     * judged with.
+     */
+    public StateLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the id of the vertex the state node is in, exploring the graph from it on first sight.
+     */
+    public int vertexOf(StateNode stateNode) {
+        int id = stateNode.cachedGraphVerId(this);
+        if (id < 0) {
+            id = vertexId(stateNode.getGraphVer());
+            stateNode.cacheGraphVerId(this, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the vertex, exploring the graph from it on first sight.
+     */
+    public int vertexId(String graphVer) {
+        Integer id = tables.ids.get(graphVer);
+        return id != null ? id : explore(graphVer);
+    }
+
+    /**
+     * Returns the vertex with the id.
+     */
+    public String vertexName(int vertex) {
+        return tables.names.get(vertex);
+    }
+
+    /**
+     * Returns the distance of the vertex to the violating vertex.
+     */
+    public int verDist(int vertex) {
+        return tables.verDist[vertex];
+    }
+
+    /**
+     * Returns the first and the end of the edges of the vertex leading one step closer to the violating vertex.
+     */
+    public int edgeStart(int vertex) {
+        return tables.edgeStart[vertex];
+    }
+
+    public int edgeEnd(int vertex) {
+        return tables.edgeStart[vertex + 1];
+    }
+
+    /**
+     * Returns the conditions of the edge label, connected by 'and'.
+     */
+    public CondEvaluator[] edgeConditions(int edge) {
+        return tables.edgeConds[edge];
+    }
+
+    /**
+     * Adds the vertex and every vertex reachable from it to the tables.
+     */
+    private synchronized int explore(String graphVer) {
+        Tables old = tables;
+        Integer known = old.ids.get(graphVer);
+        if (known != null) {
+            return known;
+        }
+        List<String> vertices = new ArrayList<>(old.names);
+        Map<String, Integer> ids = new HashMap<>(old.ids);
+        Deque<String> queue = new ArrayDeque<>();
+        ids.put(graphVer, vertices.size());
+        vertices.add(graphVer);
+        queue.add(graphVer);
+        while (!queue.isEmpty()) {
+            HashMap<String, String> labelNode = graph.findEdge(queue.poll());
+            if (labelNode == null) {
+                continue;
+            }
+            for (String target : labelNode.values()) {
+                if (target != null && !ids.containsKey(target)) {
+                    ids.put(target, vertices.size());
+                    vertices.add(target);
+                    queue.add(target);
+                }
+            }
+        }
+
+        Tables next = new Tables(vertices.size(), 0);
+        next.names.addAll(vertices);
+        next.ids.putAll(ids);
+        List<CondEvaluator[]> edgeConds = new ArrayList<>();
+        for (int v = 0; v < vertices.size(); v++) {
+            next.verDist[v] = v < old.names.size() ? old.verDist[v] : graph.getVerDist(vertices.get(v));
+        }
+        for (int v = 0; v < vertices.size(); v++) {
+            next.edgeStart[v] = edgeConds.size();
+            if (v < old.names.size()) {
+                for (int e = old.edgeStart[v]; e < old.edgeStart[v + 1]; e++) {
+                    edgeConds.add(old.edgeConds[e]);
+                }
+                continue;
+            }
+            HashMap<String, String> labelNode = graph.findEdge(vertices.get(v));
+            if (labelNode == null) {
+                continue;
+            }
+            for (Map.Entry<String, String> edge : labelNode.entrySet()) {
+                if (graph.getVerDist(edge.getValue()) == next.verDist[v] - 1) {
+                    CondEvaluator[] conds = compileLabel(edge.getKey());
+                    if (conds.length > 0) { // A label without known conditions adds no distance
+                        edgeConds.add(conds);
+                    }
+                }
+            }
+        }
+        next.edgeStart[vertices.size()] = edgeConds.size();
+        next.edgeConds = edgeConds.toArray(new CondEvaluator[0][]);
+        tables = next;
+        return ids.get(graphVer);
+    }
+
+    /**
+     * Splits a label (e.g., a0 && a1) into the conditions it refers to.
+     */
+    private CondEvaluator[] compileLabel(String label) {
+        List<CondEvaluator> conds = new ArrayList<>();
+        for (String singleLabel : singleLabels(label)) {
+            Condition condition = specification.getIdToCond().get(singleLabel);
+            if (condition != null) {
+                CondEvaluator evaluator = evaluators.get(condition);
+                conds.add(evaluator != null ? evaluator : layout.evaluatorOf(condition));
+            }
+        }
+        return conds.toArray(new CondEvaluator[0]);
+    }
+
+    /**
+     * Splits a label into the ids of the conditions it joins with "&&", trimmed of the spaces around them.
+     * Shared by everything which resolves labels, so that they all read a label the same way.
+     */
+    static String[] singleLabels(String label) {
+        String[] singleLabels = label.split("&&");
+        for (int i = 0; i < singleLabels.length; i++) {
+            singleLabels[i] = singleLabels[i].trim();
+        }
+        return singleLabels;
+    }
+
+    private static final class Tables {
+        final List<String> names = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+        final int[] verDist;
+        final int[] edgeStart;
+        CondEvaluator[][] edgeConds;
+
+        Tables(int vertexCount, int edgeCount) {
+            verDist = new int[vertexCount];
+            edgeStart = new int[vertexCount + 1];
+            edgeConds = new CondEvaluator[edgeCount][];
+        }
+    }
+}
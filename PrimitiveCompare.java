@@ -0,0 +1,97 @@
+package Common.Enums;
+
+/**
+ * Primitive counterparts of {@link Compare#compare}, for values that are already held as doubles or booleans.
+ * The orderings each comparison accepts are taken from {@link Compare#compare} once, so both stay consistent.
+ */
+public final class PrimitiveCompare {
+    /**
+     * Outcome bits of comparing a value with a target.
+     */
+    public static final int LESS = 1;
+    public static final int EQUAL = 2;
+    public static final int GREATER = 4;
+
+    private static final int[] ACCEPT = new int[Compare.values().length];
+
+    static {
+        for (Compare compare : Compare.values()) {
+            ACCEPT[compare.ordinal()] = (Compare.compare("0", "1", compare) ? LESS : 0)
+                    | (Compare.compare("1", "1", compare) ? EQUAL : 0)
+                    | (Compare.compare("2", "1", compare) ? GREATER : 0);
+        }
+    }
+
+    private PrimitiveCompare() {
+    }
+
+    /**
+     * Returns the outcomes accepted by the comparison, as a mask of {@link #LESS}, {@link #EQUAL} and {@link #GREATER}.
+     */
+    public static int accept(Compare compare) {
+        return compare == null ? 0 : ACCEPT[compare.ordinal()];
+    }
+
+    /**
+     * Returns the outcome of comparing the value with the target; neither value may be NaN.
+     */
+    public static int order(double value, double target) {
+        return value < target ? LESS : value > target ? GREATER : EQUAL;
+    }
+
+    public static boolean compare(double value, double target, Compare compare) {
+        return (accept(compare) & order(value, target)) != 0;
+    }
+
+    /**
+     * Compares with a mask obtained from {@link #accept}, for callers which chose the comparison in advance.
+     */
+    public static boolean compare(double value, double target, int accept) {
+        return (accept & order(value, target)) != 0;
+    }
+
+    public static boolean compare(boolean value, boolean target, Compare compare) {
+        if (Compare.EQUAL.equals(compare)) {
+            return value == target;
+        } else if (Compare.NO_EQUAL.equals(compare)) {
+            return value != target;
+        }
+        return Compare.compare(String.valueOf(value), String.valueOf(target), compare);
+    }
+
+    /**
+     * Parses a value as {@link Double#parseDouble} does, returning NaN instead of throwing when the text is not a
+     * number. Plain decimals, the common case, are told apart first so that they skip the exception handler.
+     */
+    public static double toDouble(String text) {
+        if (text == null) {
+            return Double.NaN;
+        }
+        int len = text.length();
+        int i = 0;
+        if (len > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            i++;
+        }
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < len; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        if (!digits || i < len) {
+            // Exponents, surrounding spaces, Infinity and other forms are rare, leave them to the full parser.
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.parseDouble(text);
+    }
+}
@@ -0,0 +1,376 @@
+package Mutate;
+
+import java.util.*;
+import Common.Rule.Condition.Condition;
+import Common.Rule.Rule;
+import StatePath.CondEvaluator;
+import StatePath.StateLayout;
+import StatePath.StateNode;
+import Util.Metrics;
+
+/**
+ * The rule chain compiled into integer-indexed predecessor tables, for measuring how close a state node is to
+ * fulfilling a condition through the rules that can bring it about.
+ * A chain is not followed back into a condition already on it, so rule cycles are cut along each chain as it is
+ * explored, and the tables themselves are never changed. The distance of each (condition, depth) pair is memoized
+ * while a node is being scored, except for conditions on a rule cycle, whose distance depends on the chain which
+ * reached them.
+ */
+public class RuleChainEngine {
+    /**
+     * The rule chain and layout the tables were built from.
+     */
+    private final Map<Condition, List<Rule>> ruleChain;
+    private final int ruleChainSize;
+    private final StateLayout layout;
+
+    /**
+     * Condition id -> evaluator, and the ids of the rules which have the condition as a consequence.
+     */
+    private final CondEvaluator[] conditions;
+    private final int[][] condRules;
+
+    /**
+     * Rule id -> ids of its conditions.
+     */
+    private final int[][] ruleConds;
+
+    /**
+     * Condition id -> whether the condition lies on a rule cycle.
+     */
+    private final boolean[] cyclic;
+
+    private final Map<Condition, Integer> condIds = new HashMap<>();
+    private final Map<Rule, Integer> ruleIds = new IdentityHashMap<>();
+
+    /**
+     * Evaluator id -> condition id, or -1 if the condition is not in the rule chain.
+     */
+    private final int[] evaluatorConds;
+
+    /**
+     * The conditions which lie on a rule cycle.
+     */
+    private final List<Condition> cyclicConditions = new ArrayList<>();
+
+    /**
+     * The detection depth and the weight of each layer: layer i weighs 2^(depth-i) / (2^depth - 1).
+     */
+    private final int depth;
+    private final double[] weights;
+
+    private final ThreadLocal<Scratch> scratch;
+
+    public RuleChainEngine(Map<Condition, List<Rule>> ruleChain, StateLayout layout, int depth) {
+        this.ruleChain = ruleChain;
+        this.ruleChainSize = ruleChain == null ? 0 : ruleChain.size();
+        this.layout = layout;
+        this.depth = Math.max(depth, 0);
+
+        List<Rule> rules = new ArrayList<>();
+        if (ruleChain != null) {
+            for (Map.Entry<Condition, List<Rule>> entry : ruleChain.entrySet()) {
+                condId(entry.getKey());
+                for (Rule rule : entry.getValue()) {
+                    if (!ruleIds.containsKey(rule)) {
+                        ruleIds.put(rule, rules.size());
+                        rules.add(rule);
+                        for (Condition condition : rule.getConditions()) {
+                            condId(condition);
+                        }
+                    }
+                }
+            }
+        }
+        conditions = new CondEvaluator[condIds.size()];
+        for (Map.Entry<Condition, Integer> entry : condIds.entrySet()) {
+            conditions[entry.getValue()] = layout.evaluatorOf(entry.getKey());
+        }
+        condRules = new int[conditions.length][];
+        Arrays.fill(condRules, new int[0]);
+        if (ruleChain != null) {
+            for (Map.Entry<Condition, List<Rule>> entry : ruleChain.entrySet()) {
+                int[] ids = new int[entry.getValue().size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = ruleIds.get(entry.getValue().get(i));
+                }
+                condRules[condIds.get(entry.getKey())] = ids;
+            }
+        }
+        ruleConds = new int[rules.size()][];
+        for (int r = 0; r < ruleConds.length; r++) {
+            List<Condition> ruleConditions = rules.get(r).getConditions();
+            ruleConds[r] = new int[ruleConditions.size()];
+            for (int i = 0; i < ruleConds[r].length; i++) {
+                ruleConds[r][i] = condIds.get(ruleConditions.get(i));
+            }
+        }
+        cyclic = findCycles();
+        for (int c = 0; c < cyclic.length; c++) {
+            if (cyclic[c]) {
+                cyclicConditions.add(conditions[c].getCondition());
+            }
+        }
+        evaluatorConds = new int[layout.evaluatorCount()];
+        Arrays.fill(evaluatorConds, -1);
+        for (int c = 0; c < conditions.length; c++) {
+            evaluatorConds[conditions[c].getId()] = c;
+        }
+
+        weights = new double[this.depth + 2];
+        double total = Math.pow(2, this.depth) - 1;
+        for (int i = 1; i <= this.depth; i++) {
+            weights[i] = Math.pow(2, this.depth - i) / total;
+        }
+        int memoSize = conditions.length * (this.depth + 2);
+        scratch = ThreadLocal.withInitial(() -> new Scratch(conditions.length, memoSize));
+    }
+
+    private int condId(Condition condition) {
+        Integer id = condIds.get(condition);
+        if (id == null) {
+            id = condIds.size();
+            condIds.put(condition, id);
+        }
+        return id;
+    }
+
+    /**
+     * Finds the conditions which lie on a rule cycle: those of a strongly connected component of the predecessor
+     * graph with more than one condition, or with a rule leading back to itself (iterative Tarjan).
+     */
+    private boolean[] findCycles() {
+        int n = conditions.length;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        boolean[] result = new boolean[n];
+        int[] component = new int[n];
+        int top = 0;
+        int next = 0;
+        Arrays.fill(index, -1);
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            // Frames of (condition, index of the next rule, index of the next condition in it).
+            Deque<int[]> stack = new ArrayDeque<>();
+            stack.push(new int[]{root, 0, 0});
+            index[root] = low[root] = next++;
+            component[top++] = root;
+            onStack[root] = true;
+            while (!stack.isEmpty()) {
+                int[] frame = stack.peek();
+                int v = frame[0];
+                int[] rulesOfCond = condRules[v];
+                if (frame[1] < rulesOfCond.length) {
+                    int[] conds = ruleConds[rulesOfCond[frame[1]]];
+                    if (frame[2] >= conds.length) {
+                        frame[1]++;
+                        frame[2] = 0;
+                        continue;
+                    }
+                    int w = conds[frame[2]++];
+                    if (w == v) {
+                        result[v] = true;
+                    }
+                    if (index[w] < 0) {
+                        index[w] = low[w] = next++;
+                        component[top++] = w;
+                        onStack[w] = true;
+                        stack.push(new int[]{w, 0, 0});
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                stack.pop();
+                if (!stack.isEmpty()) {
+                    int parent = stack.peek()[0];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    int end = top;
+                    do {
+                        onStack[component[--top]] = false;
+                    } while (component[top] != v);
+                    if (end - top > 1) {
+                        for (int i = top; i < end; i++) {
+                            result[component[i]] = true;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the engine was built from the rule chain and layout, for the depth.
+     */
+    boolean builtFor(Map<Condition, List<Rule>> ruleChain, StateLayout layout, int depth) {
+        return this.ruleChain == ruleChain && this.layout == layout && this.depth == Math.max(depth, 0)
+                && ruleChainSize == (ruleChain == null ? 0 : ruleChain.size());
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public StateLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the conditions which lie on a rule cycle, which a chain is not followed back into.
+     */
+    public List<Condition> getCyclicConditions() {
+        return Collections.unmodifiableList(cyclicConditions);
+    }
+
+    /**
+     * Returns the weight of the layer, as the detection depth distributes it.
+     */
+    public double weight(int layer) {
+        return layer >= 1 && layer <= depth ? weights[layer] : 0;
+    }
+
+    /**
+     * Detect the rule chain for more detailed distance with a specific condition given.
+     * @param condition Given condition for calculating the specific distance from current situation to fulfilling the condition.
+     * @param stateNode Given stateNode which offers the necessary information of env-dynamics and devices.
+     * @param curPos Current depth of detection.
+     * @return The specific distance from current situation to fulfilling the condition through detection driven by ruleChain.
+     */
+    public double seekRuleChain(Condition condition, StateNode stateNode, int curPos) {
+        Integer id = condIds.get(condition);
+        return id == null ? 0 : seekRuleChain(id, curPos, scratchFor(stateNode));
+    }
+
+    /**
+     * Detect the rule chain from a compiled condition, without looking the condition up.
+     */
+    public double seekRuleChain(CondEvaluator condition, StateNode stateNode, int curPos) {
+        int id = condition.getId();
+        int cond = id < evaluatorConds.length ? evaluatorConds[id] : -1;
+        return cond < 0 ? 0 : seekRuleChain(cond, curPos, scratchFor(stateNode));
+    }
+
+    /**
+     * Detect the rule chain for more detailed distance.
+     * @param rule The rule to be detected.
+     * @param depthCount Current depth of detection.
+     * @param stateNode Given stateNode which offers the necessary information of env-dynamics and devices.
+     * @return The specific distance from current situation to fulfilling the rule's conditions.
+     */
+    public double seekDown(Rule rule, int depthCount, StateNode stateNode) {
+        Integer id = ruleIds.get(rule);
+        return id == null ? 0 : seekDown(id, depthCount, scratchFor(stateNode));
+    }
+
+    private double seekRuleChain(int cond, int curPos, Scratch s) {
+        int[] rules = condRules[cond];
+        if (rules.length == 0 || curPos + 1 > depth || s.onPath[cond]) {
+            return 0; // A condition already on the chain would lead around a rule cycle
+        }
+        // Only the chains through a cyclic condition can lead back to a condition on the chain above it.
+        boolean memoized = !cyclic[cond];
+        int key = cond * (depth + 2) + curPos;
+        if (memoized && s.chainStamp[key] == s.stamp) {
+            return s.chainMemo[key];
+        }
+        Metrics.count(Metrics.Counter.RULE_CHAIN_SEEK);
+        Metrics.record(Metrics.Histogram.RULE_CHAIN_DEPTH, curPos + 1);
+        // A series of predecessors connected by ||, take the maximum value as the final result
+        double setDist = 0;
+        s.onPath[cond] = true;
+        for (int rule : rules) {
+            setDist = Math.max(setDist, seekDown(rule, curPos + 1, s));
+        }
+        s.onPath[cond] = false;
+        if (memoized) {
+            s.chainMemo[key] = setDist;
+            s.chainStamp[key] = s.stamp;
+        }
+        return setDist;
+    }
+
+    private double seekDown(int rule, int depthCount, Scratch s) {
+        if (depthCount > depth) {
+            return 0;
+        }
+        int[] conds = ruleConds[rule];
+        double finalDist = 0;
+        if (conds.length > 0) {
+            // in current layer, rule's "and" connections have to be coped with average
+            double sum = 0;
+            for (int cond : conds) {
+                sum += conditionDist(cond, s);
+            }
+            finalDist = sum / conds.length * weights[depthCount];
+        }
+        // Continue the predecessor DFS over the conditions connected by &&, averaging the relevant ones
+        double subSum = 0;
+        int subCount = 0;
+        for (int cond : conds) {
+            double setDist = seekRuleChain(cond, depthCount, s);
+            if (setDist > 0) { // If it's 0, it means there are no relevant conditions
+                subSum += setDist;
+                subCount++;
+            }
+        }
+        return finalDist + (subCount > 0 ? subSum / subCount : 0);
+    }
+
+    private double conditionDist(int cond, Scratch s) {
+        if (s.distStamp[cond] != s.stamp) {
+            s.distMemo[cond] = conditions[cond].dist(s.node);
+            s.distStamp[cond] = s.stamp;
+        }
+        return s.distMemo[cond];
+    }
+
+    /**
+     * Returns the memo tables of the current thread, reset if they were filled for another node or state.
+     * @throws IllegalArgumentException If the node is of another layout, whose slots the conditions cannot read.
+     */
+    private Scratch scratchFor(StateNode stateNode) {
+        if (stateNode.getLayout() != layout) {
+            throw new IllegalArgumentException("State node of another layout than the rule chain was compiled for");
+        }
+        Scratch s = scratch.get();
+        if (s.node != stateNode || s.modCount != stateNode.getModCount()) {
+            s.node = stateNode;
+            s.modCount = stateNode.getModCount();
+            if (++s.stamp == 0) {
+                Arrays.fill(s.distStamp, 0);
+                Arrays.fill(s.chainStamp, 0);
+                s.stamp = 1;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Per-thread memo of the condition distances and chain distances of the node being scored, and the conditions
+     * on the chain being explored. A memo entry is valid when its stamp equals the current stamp.
+     */
+    private static final class Scratch {
+        StateNode node;
+        int modCount;
+        int stamp;
+        final double[] distMemo;
+        final int[] distStamp;
+        final double[] chainMemo;
+        final int[] chainStamp;
+        final boolean[] onPath;
+
+        Scratch(int conditionCount, int memoSize) {
+            onPath = new boolean[conditionCount];
+            distMemo = new double[conditionCount];
+            distStamp = new int[conditionCount];
+            chainMemo = new double[memoSize];
+            chainStamp = new int[memoSize];
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package Mutate;
+
+import java.util.*;
+import StatePath.StatePath;
+
+/**
+ * Schedules the candidate state paths for mutation: an indexed min-heap keyed by distance, updated as paths
+ * are scored, with the selection policy and the energy of the selected path decided here.
+ * All randomness comes from a seeded {@link SplittableRandom}, so a campaign can be replayed from its seed.
+ */
+public class SeedScheduler {
+    public enum Mode {
+        /**
+         * The closest path, or with the exploration probability a uniformly random one.
+         */
+        GREEDY,
+        /**
+         * A uniformly random path among the k closest.
+         */
+        TOP_K,
+        /**
+         * The closest of a few uniformly random paths.
+         */
+        TOURNAMENT
+    }
+
+    /**
+     * The energy of a path: the base number of mutations, and the cap.
+     */
+    private static final int BASE_ENERGY = 16;
+    private static final int MAX_ENERGY = 1024;
+
+    private final Map<StatePath, Seed> seeds = new IdentityHashMap<>();
+    private Seed[] heap = new Seed[16];
+    private int size;
+
+    /**
+     * The largest distance among the candidates, exact after {@link #updateAll} and an upper bound otherwise.
+     */
+    private double maxDist;
+
+    /**
+     * Breaks ties between equal distances by insertion order, so that the heap does not depend on hashing.
+     */
+    private long sequence;
+
+    private Mode mode = Mode.GREEDY;
+    private double exploration = 0.2;
+    private int topK = 8;
+    private int tournamentSize = 4;
+
+    private long seed;
+    private SplittableRandom random;
+
+    public SeedScheduler(long seed) {
+        setSeed(seed);
+    }
+
+    public synchronized void setSeed(long seed) {
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+    }
+
+    public synchronized long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns an independent generator for a worker thread, split from this scheduler's generator.
+     */
+    public synchronized SplittableRandom splitRandom() {
+        return random.split();
+    }
+
+    public synchronized void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public synchronized void setExploration(double exploration) {
+        this.exploration = exploration;
+    }
+
+    public synchronized void setTopK(int topK) {
+        this.topK = Math.max(topK, 1);
+    }
+
+    public synchronized void setTournamentSize(int tournamentSize) {
+        this.tournamentSize = Math.max(tournamentSize, 1);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Inserts the path or moves it to its new distance, in O(log n).
+     */
+    public synchronized void update(StatePath path, double dist) {
+        maxDist = size == 0 ? dist : Math.max(maxDist, dist);
+        Seed s = seeds.get(path);
+        if (s == null) {
+            s = new Seed(path, dist, sequence++);
+            seeds.put(path, s);
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            s.index = size;
+            heap[size++] = s;
+            siftUp(s.index);
+        } else if (s.dist != dist) {
+            double old = s.dist;
+            s.dist = dist;
+            if (dist < old) {
+                siftUp(s.index);
+            } else {
+                siftDown(s.index);
+            }
+        }
+    }
+
+    /**
+     * Updates every path with its distance and drops the paths which are no longer candidates.
+     */
+    public synchronized void updateAll(List<StatePath> paths, double[] dists) {
+        Set<StatePath> current = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < dists.length; i++) {
+            update(paths.get(i), dists[i]);
+            current.add(paths.get(i));
+        }
+        if (current.size() < size) {
+            List<StatePath> stale = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (!current.contains(heap[i].path)) {
+                    stale.add(heap[i].path);
+                }
+            }
+            for (StatePath path : stale) {
+                remove(path);
+            }
+        }
+        maxDist = Double.NEGATIVE_INFINITY;
+        for (double dist : dists) {
+            maxDist = Math.max(maxDist, dist);
+        }
+    }
+
+    public synchronized void remove(StatePath path) {
+        Seed s = seeds.remove(path);
+        if (s == null) {
+            return;
+        }
+        int index = s.index;
+        Seed last = heap[--size];
+        heap[size] = null;
+        if (index < size) {
+            heap[index] = last;
+            last.index = index;
+            siftUp(index);
+            siftDown(last.index);
+        }
+    }
+
+    /**
+     * Returns the closest path, or null if there is none.
+     */
+    public synchronized StatePath peek() {
+        return size == 0 ? null : heap[0].path;
+    }
+
+    /**
+     * Selects the next path to mutate according to the mode, and counts the selection against its energy.
+     */
+    public synchronized StatePath select() {
+        if (size == 0) {
+            return null;
+        }
+        Seed chosen;
+        switch (mode) {
+            case TOP_K:
+                chosen = topK(random.nextInt(Math.min(topK, size)));
+                break;
+            case TOURNAMENT:
+                chosen = heap[random.nextInt(size)];
+                for (int i = 1; i < tournamentSize; i++) {
+                    Seed other = heap[random.nextInt(size)];
+                    if (before(other, chosen)) {
+                        chosen = other;
+                    }
+                }
+                break;
+            default:
+                chosen = random.nextDouble() < exploration ? heap[random.nextInt(size)] : heap[0]; // Partial random weighting
+        }
+        chosen.picked++;
+        return chosen.path;
+    }
+
+    /**
+     * Counts a selection of the path made outside {@link #select()}, e.g. for new coverage, against its energy.
+     * @return Whether the path is a candidate.
+     */
+    public synchronized boolean picked(StatePath path) {
+        Seed s = seeds.get(path);
+        if (s == null) {
+            return false;
+        }
+        s.picked++;
+        return true;
+    }
+
+    /**
+     * Returns the number of mutations to spend on the path: more for paths close to the violating vertex
+     * relative to the other candidates, and less each time the path has already been selected.
+     */
+    public synchronized int energy(StatePath path) {
+        Seed s = seeds.get(path);
+        if (s == null || size == 0) {
+            return BASE_ENERGY;
+        }
+        double min = heap[0].dist;
+        double max = Math.max(maxDist, min);
+        double closeness = max > min ? (max - s.dist) / (max - min) : 1;
+        double energy = BASE_ENERGY * (1 + 3 * closeness) * 4 / (4 + s.picked);
+        return (int) Math.max(1, Math.min(MAX_ENERGY, Math.round(energy)));
+    }
+
+    /**
+     * Returns the seed of the given rank among the closest ones, in O(k log k) from the heap.
+     */
+    private Seed topK(int rank) {
+        PriorityQueue<Integer> frontier = new PriorityQueue<>((a, b) -> before(heap[a], heap[b]) ? -1 : 1);
+        frontier.add(0);
+        for (int i = 0; i < rank; i++) {
+            int index = frontier.poll();
+            if (2 * index + 1 < size) frontier.add(2 * index + 1);
+            if (2 * index + 2 < size) frontier.add(2 * index + 2);
+        }
+        return heap[frontier.peek()];
+    }
+
+    private static boolean before(Seed a, Seed b) {
+        return a.dist < b.dist || a.dist == b.dist && a.sequence < b.sequence;
+    }
+
+    private void siftUp(int index) {
+        Seed s = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(s, heap[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].index = index;
+            index = parent;
+        }
+        heap[index] = s;
+        s.index = index;
+    }
+
+    private void siftDown(int index) {
+        Seed s = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], s)) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+        heap[index] = s;
+        s.index = index;
+    }
+
+    private static final class Seed {
+        final StatePath path;
+        final long sequence;
+        double dist;
+        int index;
+        long picked;
+
+        Seed(StatePath path, double dist, long sequence) {
+            this.path = path;
+            this.dist = dist;
+            this.sequence = sequence;
+        }
+    }
+}
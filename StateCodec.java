@@ -0,0 +1,369 @@
+package StatePath;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import Common.Enums.Type.DeviceOperationType;
+import Common.Enums.Type.EnvOperationType;
+import StatePath.subState.DeviceInstance;
+import StatePath.subState.EnvInstance;
+
+/**
+ * The binary encoding of state nodes and paths, shared by the trace store, the corpus sync and checkpoints.
+ * A node is encoded as the writes which built it, relative to the previous node of the path when it was stepped
+ * from it, and decoded by replaying the writes on a fresh node of the layout. Device trust, privacy and attack
+ * flags and env values and rates written through an instance handed out by the node, rather than through its
+ * setters, are encoded as extra writes. Only a path whose replay rebuilds exactly the same states, as checked
+ * against their fingerprints, is encoded.
+ * <pre>
+ * path:       version, node count, then per node:
+ *             1 if it follows from the previous node else 0, graphVer, write count, writes
+ * write:      kind, then unless a step: slot, op, the variable name of a state detail, value
+ * checkpoint: magic, version, layout signature, path count, then per path: record length, path
+ * </pre>
+ * Counts and slots are varints, strings their UTF-8 length plus one (0 for null) followed by the bytes.
+ */
+public final class StateCodec {
+    /**
+     * The version of the encoding, written first in every path so that records of another version are refused.
+     */
+    public static final int VERSION = 1;
+
+    private static final int CHECKPOINT_MAGIC = 0x434b5031; // CKP1
+
+    private StateCodec() {
+    }
+
+    /**
+     * Returns a hash of the device ids and env names of the layout in slot order, which a node must be decoded
+     * against the same as it was encoded.
+     */
+    public static long layoutSignature(StateLayout layout) {
+        long signature = 1125899906842597L;
+        signature = 31 * signature + layout.deviceCount();
+        for (int i = 0; i < layout.deviceCount(); i++) {
+            signature = 31 * signature + Objects.hashCode(layout.deviceId(i));
+        }
+        signature = 31 * signature + layout.envCount();
+        for (int i = 0; i < layout.envCount(); i++) {
+            signature = 31 * signature + Objects.hashCode(layout.envName(i));
+        }
+        return signature;
+    }
+
+    /**
+     * Encodes a single node.
+     * @return The record, or null if the node cannot be rebuilt from it.
+     */
+    public static byte[] encodeNode(StateNode stateNode) {
+        return encodePath(Collections.singletonList(stateNode), stateNode.getLayout());
+    }
+
+    public static StateNode decodeNode(ByteBuffer in, StateLayout layout) {
+        return decodePath(in, layout).get(0);
+    }
+
+    /**
+     * Encodes the nodes of a path.
+     * @return The record, or null if the nodes are not of the layout, are not journaled, or cannot be rebuilt
+     * from the record.
+     */
+    public static byte[] encodePath(List<StateNode> stateNodes, StateLayout layout) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        writeVarInt(out, stateNodes.size());
+        StateJournal previous = null;
+        StateNode replayed = null;
+        List<StateJournal> writes = new ArrayList<>();
+        for (StateNode stateNode : stateNodes) {
+            if (stateNode.getLayout() != layout || !stateNode.journaling()) {
+                return null;
+            }
+            StateJournal journal = stateNode.journal();
+            boolean follows = replayed != null && StateJournal.isAncestor(previous, journal);
+            StateJournal from = follows ? previous : null;
+            writes.clear();
+            for (StateJournal entry = journal; entry != from; entry = entry.parent) {
+                writes.add(entry);
+            }
+            Collections.reverse(writes);
+            // Replay as the decoder will, on the node it will have decoded last.
+            StateNode node = follows ? (StateNode) replayed.clone() : new StateNode(layout);
+            for (StateJournal write : writes) {
+                node = replay(node, write);
+            }
+            patch(stateNode, node, writes);
+            if (node.stateFingerprint() != stateNode.stateFingerprint()) {
+                return null;
+            }
+            out.write(follows ? 1 : 0);
+            writeString(out, stateNode.getGraphVer());
+            writeVarInt(out, writes.size());
+            for (StateJournal write : writes) {
+                out.write(write.kind);
+                if (write.kind != StateJournal.STEP) {
+                    writeVarInt(out, write.slot);
+                    out.write(write.op);
+                    if (write.kind == StateJournal.STATE_DETAIL) {
+                        writeString(out, write.variableName);
+                    }
+                    writeString(out, write.value);
+                }
+            }
+            previous = journal;
+            replayed = node;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuilds the nodes of a path from a record, on fresh journaled nodes of the layout.
+     * @throws IllegalArgumentException If the record is of another version.
+     */
+    public static List<StateNode> decodePath(ByteBuffer in, StateLayout layout) {
+        int version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported state path version " + version);
+        }
+        int count = readVarInt(in);
+        List<StateNode> stateNodes = new ArrayList<>(count);
+        StateNode previous = null;
+        for (int n = 0; n < count; n++) {
+            boolean follows = in.get() == 1;
+            String graphVer = readString(in);
+            StateNode stateNode;
+            if (follows) {
+                stateNode = (StateNode) previous.clone();
+            } else {
+                stateNode = new StateNode(layout);
+                stateNode.startJournal();
+            }
+            int writes = readVarInt(in);
+            for (int i = 0; i < writes; i++) {
+                byte kind = in.get();
+                if (kind == StateJournal.STEP) {
+                    stateNode = stateNode.replay(kind, -1, (byte) 0, null, null);
+                    continue;
+                }
+                int slot = readVarInt(in);
+                byte op = in.get();
+                String variableName = kind == StateJournal.STATE_DETAIL ? readString(in) : null;
+                stateNode = stateNode.replay(kind, slot, op, variableName, readString(in));
+            }
+            stateNode.setGraphVer(graphVer);
+            stateNodes.add(stateNode);
+            previous = stateNode;
+        }
+        return stateNodes;
+    }
+
+    /**
+     * Writes the paths to the checkpoint file, replacing it at once when they are all written.
+     * @return The number of paths written; those which cannot be rebuilt from their record are left out.
+     */
+    public static int writeCheckpoint(Path file, List<StatePath> statePaths, StateLayout layout) throws IOException {
+        List<byte[]> records = new ArrayList<>(statePaths.size());
+        for (StatePath statePath : statePaths) {
+            byte[] record = encodePath(statePath.getStateNodes(), layout);
+            if (record != null) {
+                records.add(record);
+                compact(statePath.getStateNodes());
+            }
+        }
+        Path tmp = file.resolveSibling("." + file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(layoutSignature(layout));
+            out.writeInt(records.size());
+            for (byte[] record : records) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return records.size();
+    }
+
+    /**
+     * Reads back the paths of a checkpoint file. The paths are decoded in parallel, as they share no node.
+     * @throws IOException If the file is not a checkpoint of this version and layout.
+     */
+    public static List<StatePath> readCheckpoint(Path file, StateLayout layout) throws IOException {
+        List<byte[]> records;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+            }
+            if (in.readLong() != layoutSignature(layout)) {
+                throw new IOException("Checkpoint of another device and env layout: " + file);
+            }
+            int count = in.readInt();
+            records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                records.add(record);
+            }
+        }
+        List<byte[]> read = records;
+        return IntStream.range(0, read.size()).parallel()
+                .mapToObj(i -> {
+                    StatePath statePath = new StatePath();
+                    statePath.setStateNodes(decodePath(ByteBuffer.wrap(read.get(i)), layout));
+                    return statePath;
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Replaces the journals of the nodes of a path by shorter ones which rebuild the same states, so that the
+     * lineage before the path is released. The first node gets its device writes but trust and privacy, without
+     * the steps and env writes which led to it, patched as when encoding; each next node gets its own writes on
+     * top of the node before. Nothing is replaced unless the first node is rebuilt exactly, and a path whose
+     * first node was not stepped, e.g. one compacted already, is left as is.
+     */
+    static void compact(List<StateNode> stateNodes) {
+        if (stateNodes.isEmpty() || !stateNodes.get(0).journaling()) {
+            return;
+        }
+        StateNode first = stateNodes.get(0);
+        List<StateJournal> writes = new ArrayList<>();
+        boolean stepped = false;
+        for (StateJournal entry = first.journal(); entry != null; entry = entry.parent) {
+            stepped |= entry.kind == StateJournal.STEP;
+            if (entry.kind == StateJournal.STATE_DETAIL || (entry.kind == StateJournal.SET_DEVICE
+                    && entry.op != DeviceOperationType.Trust.ordinal()
+                    && entry.op != DeviceOperationType.Privacy.ordinal())) {
+                writes.add(entry);
+            }
+        }
+        if (!stepped) {
+            return;
+        }
+        Collections.reverse(writes);
+        StateNode node = new StateNode(first.getLayout());
+        for (StateJournal write : writes) {
+            node = replay(node, write);
+        }
+        patch(first, node, writes);
+        if (node.stateFingerprint() != first.stateFingerprint()) {
+            return;
+        }
+        StateJournal base = null;
+        for (StateJournal write : writes) {
+            base = new StateJournal(base, write.kind, write.slot, write.op, write.variableName, write.value);
+        }
+        StateJournal previous = first.journal();
+        first.rebase(base);
+        for (int i = 1; i < stateNodes.size(); i++) {
+            StateNode stateNode = stateNodes.get(i);
+            StateJournal journal = stateNode.journal();
+            if (!stateNode.journaling() || !StateJournal.isAncestor(previous, journal)) {
+                // The node does not follow from the one before, so it keeps its own lineage.
+                return;
+            }
+            List<StateJournal> own = new ArrayList<>();
+            for (StateJournal entry = journal; entry != previous; entry = entry.parent) {
+                own.add(entry);
+            }
+            for (int j = own.size() - 1; j >= 0; j--) {
+                StateJournal write = own.get(j);
+                base = new StateJournal(base, write.kind, write.slot, write.op, write.variableName, write.value);
+            }
+            previous = journal;
+            stateNode.rebase(base);
+        }
+    }
+
+    private static StateNode replay(StateNode stateNode, StateJournal write) {
+        return stateNode.replay(write.kind, write.slot, write.op, write.variableName, write.value);
+    }
+
+    /**
+     * Appends to the writes, and applies to the replayed node, those which bring its env values and rates and its
+     * device trust, privacy and attack flags to the values of the original node.
+     */
+    private static void patch(StateNode original, StateNode replayed, List<StateJournal> writes) {
+        StateLayout layout = original.getLayout();
+        for (int e = 0; e < layout.envCount(); e++) {
+            EnvInstance want = original.peekEnv(e);
+            EnvInstance got = replayed.peekEnv(e);
+            if (!Objects.equals(want.getVariableVal(), got.getVariableVal())) {
+                patch(replayed, writes, StateJournal.SET_ENV, e, EnvOperationType.Value.ordinal(), want.getVariableVal());
+            }
+            if (!Objects.equals(want.getChangeRate(), got.getChangeRate())) {
+                patch(replayed, writes, StateJournal.SET_ENV, e, EnvOperationType.ChangeRate.ordinal(), want.getChangeRate());
+            }
+        }
+        for (int d = 0; d < layout.deviceCount(); d++) {
+            DeviceInstance want = original.peekDevice(d);
+            DeviceInstance got = replayed.peekDevice(d);
+            if (!Objects.equals(want.getTrust(), got.getTrust())) {
+                patch(replayed, writes, StateJournal.SET_DEVICE, d, DeviceOperationType.Trust.ordinal(), want.getTrust());
+            }
+            if (!Objects.equals(want.getPrivacy(), got.getPrivacy())) {
+                patch(replayed, writes, StateJournal.SET_DEVICE, d, DeviceOperationType.Privacy.ordinal(), want.getPrivacy());
+            }
+            if (want.isAttacked() != got.isAttacked()) {
+                patch(replayed, writes, StateJournal.SET_DEVICE, d, DeviceOperationType.Attack.ordinal(),
+                        String.valueOf(want.isAttacked()));
+            }
+        }
+    }
+
+    private static void patch(StateNode replayed, List<StateJournal> writes, byte kind, int slot, int op, String value) {
+        StateJournal write = new StateJournal(null, kind, slot, op, null, value);
+        writes.add(write);
+        replay(replayed, write);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
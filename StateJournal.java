@@ -0,0 +1,57 @@
+package StatePath;
+
+/**
+ * The writes which built a state node from a fresh one, as an immutable list linked from the latest write
+ * back to the first, shared between a node and the nodes cloned from it.
+ * Replaying the list on a fresh node of the same layout rebuilds the state, which is how the trace store
+ * encodes nodes without knowing the internals of the device and env instances.
+ * Writes are only recorded on journaled nodes, see {@link StateNode#startJournal()}.
+ */
+final class StateJournal {
+    /**
+     * The node was advanced by {@link StateNode#nextClone()}.
+     */
+    static final byte STEP = 0;
+    static final byte SET_ENV = 1;
+    static final byte SET_DEVICE = 2;
+    static final byte STATE_DETAIL = 3;
+
+    final StateJournal parent;
+    final byte kind;
+    final int slot;
+    /**
+     * The ordinal of the env or device operation type.
+     */
+    final byte op;
+    final String variableName;
+    final String value;
+    /**
+     * The number of entries up to this one, to find common ancestors quickly.
+     */
+    final int length;
+
+    StateJournal(StateJournal parent, byte kind, int slot, int op, String variableName, String value) {
+        this.parent = parent;
+        this.kind = kind;
+        this.slot = slot;
+        this.op = (byte) op;
+        this.variableName = variableName;
+        this.value = value;
+        this.length = parent == null ? 1 : parent.length + 1;
+    }
+
+    static int length(StateJournal journal) {
+        return journal == null ? 0 : journal.length;
+    }
+
+    /**
+     * Returns whether the ancestor journal is the journal itself or one of its parents.
+     */
+    static boolean isAncestor(StateJournal ancestor, StateJournal journal) {
+        int length = length(ancestor);
+        while (length(journal) > length) {
+            journal = journal.parent;
+        }
+        return journal == ancestor;
+    }
+}
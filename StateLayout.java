@@ -0,0 +1,344 @@
+package StatePath;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import static Common.Enums.Type.DeviceOperationType.*;
+import static Common.Enums.PrimitiveCompare.toDouble;
+import static Util.StringUtils.formatString;
+import Common.Device.Device;
+import Common.EnvDynamics.EnvDynamics;
+import Common.Rule.Condition.Condition;
+import Common.Template.DevicePool;
+import Common.Template.EnvPool;
+import StatePath.subState.DeviceInstance;
+import StatePath.subState.EnvInstance;
+
+/**
+ * The compiled layout of a state node: every device instance and environment variable gets a dense slot,
+ * so that state nodes can keep their instances in flat arrays and conditions can be resolved once.
+ */
+public final class StateLayout {
+    /**
+     * The layout of the currently loaded device pool and environment variable pool.
+     */
+    private static volatile StateLayout current;
+
+    /**
+     * The pools the layout was compiled from, used to detect a reload.
+     */
+    private final Map<String, Device> devicePool;
+    private final Set<EnvDynamics> envPool;
+    private final int devicePoolSize;
+    private final int envPoolSize;
+
+    /**
+     * What the layout was compiled from, in the pools' iteration order, so that a pool reloaded in place with
+     * as many entries is told apart too.
+     */
+    private final Device[] pooledDevices;
+    private final String[] pooledDeviceNames;
+    private final List<List<Integer>> pooledCounts;
+    private final EnvDynamics[] pooledEnvs;
+    private final String[] pooledEnvNames;
+    private final String[] pooledUpper;
+    private final String[] pooledLower;
+
+    /**
+     * Device slot -> device id (device name + index), device template and index.
+     */
+    private final String[] deviceIds;
+    private final Device[] devices;
+    private final int[] deviceIndexes;
+
+    /**
+     * Env slot -> formatted variable name and its dynamics.
+     */
+    private final String[] envNames;
+    private final EnvDynamics[] envDynamics;
+
+    /**
+     * Env slot -> bounds of the dynamics, parsed once (NaN if a bound is not a number).
+     */
+    private final double[] envUpper;
+    private final double[] envLower;
+
+    private final Map<String, Integer> deviceSlots = new HashMap<>();
+    private final Map<String, Integer> envSlots = new HashMap<>();
+
+    /**
+     * Conditions already compiled against this layout.
+     */
+    private final Map<Condition, CondEvaluator> evaluators = new ConcurrentHashMap<>();
+    private final AtomicInteger evaluatorIds = new AtomicInteger();
+
+    /**
+     * Dense ids of the resolved variables, keyed by "device|variable|check".
+     */
+    private final Map<String, Integer> varIds = new HashMap<>();
+
+    private StateLayout(Map<String, Device> devicePool, Set<EnvDynamics> envPool) {
+        this.devicePool = devicePool;
+        this.envPool = envPool;
+        this.devicePoolSize = devicePool == null ? 0 : devicePool.size();
+        this.envPoolSize = envPool == null ? 0 : envPool.size();
+
+        // Slots are ordered by name so that they are stable between runs.
+        TreeMap<String, Object[]> sortedDevices = new TreeMap<>();
+        pooledDevices = new Device[devicePoolSize];
+        pooledDeviceNames = new String[devicePoolSize];
+        pooledCounts = new ArrayList<>(devicePoolSize);
+        if (devicePool != null) {
+            int pooled = 0;
+            for (Device device : devicePool.values()) {
+                pooledDevices[pooled] = device;
+                pooledDeviceNames[pooled++] = device.getName();
+                pooledCounts.add(new ArrayList<>(device.getCountList()));
+                for (int i : device.getCountList()) {
+                    sortedDevices.put(device.getName() + i, new Object[]{device, i});
+                }
+            }
+        }
+        deviceIds = new String[sortedDevices.size()];
+        devices = new Device[sortedDevices.size()];
+        deviceIndexes = new int[sortedDevices.size()];
+        int slot = 0;
+        for (Map.Entry<String, Object[]> entry : sortedDevices.entrySet()) {
+            deviceIds[slot] = entry.getKey();
+            devices[slot] = (Device) entry.getValue()[0];
+            deviceIndexes[slot] = (Integer) entry.getValue()[1];
+            deviceSlots.put(entry.getKey(), slot++);
+        }
+
+        TreeMap<String, EnvDynamics> sortedEnvs = new TreeMap<>();
+        pooledEnvs = new EnvDynamics[envPoolSize];
+        pooledEnvNames = new String[envPoolSize];
+        pooledUpper = new String[envPoolSize];
+        pooledLower = new String[envPoolSize];
+        if (envPool != null) {
+            int pooled = 0;
+            for (EnvDynamics dynamics : envPool) {
+                pooledEnvs[pooled] = dynamics;
+                pooledEnvNames[pooled] = dynamics.getVariableName();
+                pooledUpper[pooled] = dynamics.getUpperBound();
+                pooledLower[pooled++] = dynamics.getLowerBound();
+                sortedEnvs.put(formatString(dynamics.getVariableName()), dynamics);
+            }
+        }
+        envNames = new String[sortedEnvs.size()];
+        envDynamics = new EnvDynamics[sortedEnvs.size()];
+        envUpper = new double[sortedEnvs.size()];
+        envLower = new double[sortedEnvs.size()];
+        slot = 0;
+        for (Map.Entry<String, EnvDynamics> entry : sortedEnvs.entrySet()) {
+            envNames[slot] = entry.getKey();
+            envDynamics[slot] = entry.getValue();
+            envUpper[slot] = toDouble(entry.getValue().getUpperBound());
+            envLower[slot] = toDouble(entry.getValue().getLowerBound());
+            envSlots.put(entry.getKey(), slot++);
+        }
+    }
+
+    /**
+     * Compiles the layout of the loaded device pool and environment variable pool.
+     * Shall be called once the pools are loaded; later state nodes are built on it.
+     */
+    public static synchronized StateLayout compile() {
+        current = new StateLayout(DevicePool.usedDevices, EnvPool.envDynamicsSet);
+        return current;
+    }
+
+    /**
+     * Compiles the layout of the given pools, e.g. those of a fuzzing context, without making it current.
+     */
+    public static StateLayout compile(Map<String, Device> devicePool, Set<EnvDynamics> envPool) {
+        return new StateLayout(devicePool, envPool);
+    }
+
+    /**
+     * Returns the layout of the loaded pools, compiling it again if the pools have been reloaded.
+     */
+    public static StateLayout current() {
+        StateLayout layout = current;
+        if (layout == null || !layout.matches(DevicePool.usedDevices, EnvPool.envDynamicsSet)) {
+            layout = compile();
+        }
+        return layout;
+    }
+
+    /**
+     * Returns whether the layout was compiled from the pools, as they are now.
+     */
+    public boolean builtFrom(Map<String, Device> devicePool, Set<EnvDynamics> envPool) {
+        return matches(devicePool, envPool);
+    }
+
+    /**
+     * Checks the pools' identity and size first, then walks them against what the layout was compiled from:
+     * a loader may clear and refill a pool in place. The walk compares references and short strings only.
+     */
+    private boolean matches(Map<String, Device> devicePool, Set<EnvDynamics> envPool) {
+        if (this.devicePool != devicePool || this.envPool != envPool
+                || devicePoolSize != (devicePool == null ? 0 : devicePool.size())
+                || envPoolSize != (envPool == null ? 0 : envPool.size())) {
+            return false;
+        }
+        if (devicePool != null) {
+            int pooled = 0;
+            for (Device device : devicePool.values()) {
+                if (pooled >= devicePoolSize || device != pooledDevices[pooled]
+                        || !Objects.equals(device.getName(), pooledDeviceNames[pooled])
+                        || !Objects.equals(device.getCountList(), pooledCounts.get(pooled))) {
+                    return false;
+                }
+                pooled++;
+            }
+        }
+        if (envPool != null) {
+            int pooled = 0;
+            for (EnvDynamics dynamics : envPool) {
+                if (pooled >= envPoolSize || dynamics != pooledEnvs[pooled]
+                        || !Objects.equals(dynamics.getVariableName(), pooledEnvNames[pooled])
+                        || !Objects.equals(dynamics.getUpperBound(), pooledUpper[pooled])
+                        || !Objects.equals(dynamics.getLowerBound(), pooledLower[pooled])) {
+                    return false;
+                }
+                pooled++;
+            }
+        }
+        return true;
+    }
+
+    public int deviceCount() {
+        return deviceIds.length;
+    }
+
+    public int envCount() {
+        return envNames.length;
+    }
+
+    public String deviceId(int slot) {
+        return deviceIds[slot];
+    }
+
+    public String envName(int slot) {
+        return envNames[slot];
+    }
+
+    public EnvDynamics envDynamics(int slot) {
+        return envDynamics[slot];
+    }
+
+    public double envUpper(int slot) {
+        return envUpper[slot];
+    }
+
+    public double envLower(int slot) {
+        return envLower[slot];
+    }
+
+    /**
+     * Returns the slot of the device instance, or -1 if it is not in the layout.
+     */
+    public int deviceSlot(String deviceId) {
+        Integer slot = deviceSlots.get(deviceId);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Returns the slot of the environment variable, or -1 if it is not in the layout.
+     */
+    public int envSlot(String variableName) {
+        Integer slot = envSlots.get(formatString(variableName));
+        return slot == null ? -1 : slot;
+    }
+
+    DeviceInstance newDeviceInstance(int slot) {
+        return new DeviceInstance(devices[slot], deviceIndexes[slot]);
+    }
+
+    EnvInstance newEnvInstance(int slot) {
+        return new EnvInstance(envDynamics[slot]);
+    }
+
+    /**
+     * Returns the resolved location of the variable read by the condition.
+     */
+    public VarSlot slotOf(Condition condition) {
+        return evaluatorOf(condition).getSlot();
+    }
+
+    /**
+     * Returns the evaluator of the condition compiled against this layout.
+     */
+    public CondEvaluator evaluatorOf(Condition condition) {
+        CondEvaluator evaluator = evaluators.get(condition);
+        if (evaluator == null) {
+            VarSlot slot = resolve(condition.getDeviceName(), condition.getDeviceVar(),
+                    condition.getCheckTrust(), condition.getCheckPrivacy());
+            evaluator = new CondEvaluator(evaluatorIds.getAndIncrement(), condition, slot, this);
+            CondEvaluator raced = evaluators.putIfAbsent(condition, evaluator);
+            if (raced != null) {
+                evaluator = raced;
+            }
+        }
+        return evaluator;
+    }
+
+    /**
+     * Returns an upper bound of the ids of the evaluators compiled so far.
+     */
+    public int evaluatorCount() {
+        return evaluatorIds.get();
+    }
+
+    /**
+     * Resolves the location of a variable, following the same search order as {@link StateNode#findVar}.
+     * @param id The device ID.
+     * @param variable The variable name.
+     * @param checkTrust Whether to check trust.
+     * @param checkPrivacy Whether to check privacy.
+     * @return The resolved location.
+     */
+    public VarSlot resolve(String id, String variable, Boolean checkTrust, Boolean checkPrivacy) {
+        variable = formatString(variable);
+        int device = id == null ? -1 : deviceSlot(id);
+        int env = variable == null ? -1 : envSlot(variable);
+        int kind;
+        if (device < 0) {
+            kind = VarSlot.MISSING;
+        } else if (Boolean.TRUE.equals(checkTrust)) {
+            kind = VarSlot.STATE_TRUST;
+        } else if (Boolean.TRUE.equals(checkPrivacy)) {
+            kind = VarSlot.STATE_PRIVACY;
+        } else if (TRUST.equals(variable)) {
+            kind = VarSlot.TRUST;
+        } else if (PRIVACY.equals(variable)) {
+            kind = VarSlot.PRIVACY;
+        } else if (ATTACK.equals(variable)) {
+            kind = VarSlot.ATTACK;
+        } else if (env >= 0) {
+            kind = VarSlot.ENV;
+        } else {
+            kind = VarSlot.DEVICE_VAR;
+        }
+        return new VarSlot(varId(device, variable, kind), kind, device, env, variable);
+    }
+
+    private synchronized int varId(int device, String variable, int kind) {
+        String key = device + "|" + variable + "|" + kind;
+        Integer id = varIds.get(key);
+        if (id == null) {
+            id = varIds.size();
+            varIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the number of distinct variables resolved so far.
+     */
+    public synchronized int varCount() {
+        return varIds.size();
+    }
+}
@@ -1,56 +1,248 @@
 package StatePath;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import static Common.Enums.Compare.compare;
+import static Common.Enums.PrimitiveCompare.toDouble;
 import static Common.Enums.Type.DeviceOperationType.*;
 import static Util.StringUtils.formatString;
-import Common.EnvDynamics.EnvDynamics;
 import Common.Device.Sub.Trigger;
+import Common.EnvDynamics.EnvDynamics;
 import Common.Enums.Type.DeviceOperationType;
 import Common.Enums.Type.EnvOperationType;
 import Common.Enums.Type.OperationType;
 import Common.Template.DevicePool;
+import Core.FuzzContext;
 import Common.Enums.Compare;
-import Common.Device.Device;
-import Common.Template.EnvPool;
 import Common.Rule.Condition.Condition;
 import StatePath.subState.DeviceInstance;
 import StatePath.subState.EnvInstance;
+import Util.CoverageMap;
+import Util.Metrics;
 
 @Data
 public class StateNode implements Cloneable{
     /**
-     * The device instances in the state node.
+     * The slot layout of the device and environment variable pools.
+     */
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private StateLayout layout;
+
+    /**
+     * The device instances in the state node, indexed by device slot.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private DeviceInstance[] devices;
+
+    /**
+     * The environment variable instances in the state node, indexed by env slot.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private EnvInstance[] envs;
+
+    /**
+     * Whether each device or env instance is owned by this node or still shared with the node it was cloned
+     * from (or a node cloned from it). Shared instances are copied before the first write.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private byte[] deviceShare;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private byte[] envShare;
+
+    /**
+     * The raw bits of the environment variables' values as doubles (NaN when not a number), parsed from the
+     * env instances on first read after they changed. Nodes are read by the threads scoring paths in parallel,
+     * and a plain long may be read torn (JLS 17.7), so the slots are read and written atomically; a value
+     * parsed twice by racing readers is the same.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private AtomicLongArray envValues;
+
+    /**
+     * A NaN pattern never produced by parsing, marking a value not parsed yet.
      */
-    private Map<String, DeviceInstance> deviceInstances;
+    private static final long UNPARSED = 0xfff0deadbeef0001L;
 
+    private static final byte OWNED = 0;
+    private static final byte SHARED = 1;
     /**
-     * The environment variable instances in the state node.
+     * Shared with the previous node of the path, to be copied by {@code nextClone} before the first write.
      */
-    private Map<String, EnvInstance> envInstances;
+    private static final byte SHARED_NEXT = 2;
 
     /**
      * Records the nodes that can be reached in the current state and graph.
      */
     private String graphVer;
 
+    /**
+     * The id of graphVer in the monitor table which looked it up last, dropped when graphVer changes.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private GraphVerId graphVerId;
+
+    /**
+     * Counts the instances handed out for writing, so that results cached about the node can be told stale.
+     */
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private int modCount;
+
+    /**
+     * The Zobrist-style hash of each device and env slot (devices first), and their XOR over the slots whose
+     * hash is up to date. A slot whose instance was handed out for writing is marked stale and hashed again on
+     * the next {@link #fingerprint()}, so each write costs O(1) whatever the size of the node.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long[] slotHashes;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long[] staleHashes;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long stateHash;
+
+    /**
+     * The slots (devices first, as for the hashes) whose variables may have changed since the node was stepped
+     * from its parent, i.e. since the {@link #nextClone()} which created it.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long[] dirtySlots;
+
+    /**
+     * A unique id of the node, and the id of the node it was stepped from (-1 for a fresh node).
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long stepId;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long parentStepId = -1;
+
+    private static final AtomicLong stepIds = new AtomicLong();
+
+    /**
+     * The writes which built this node from a fresh one, shared with its clones until either is written.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private StateJournal journal;
+
+    /**
+     * Whether writes are recorded in the journal, inherited by clones. Off unless the context encodes paths,
+     * as each write would otherwise allocate an entry holding on to the whole lineage for nothing.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private boolean journaling;
+
     /**
      * Initializes the state node based on the device pool and environment variable pool.
      */
     public StateNode() {
-        deviceInstances = new HashMap<>();
-        envInstances = new HashMap<>();
-        for (Device device : DevicePool.usedDevices.values()) {
-            for (int i : device.getCountList()) {
-                deviceInstances.put(device.getName() + i, new DeviceInstance(device, i));
-            }
+        this(FuzzContext.global());
+    }
+
+    /**
+     * Initializes the state node based on the pools of a fuzzing context, journaled if the context is.
+     */
+    public StateNode(FuzzContext context) {
+        this(context.getLayout());
+        journaling = context.isJournaling();
+    }
+
+    /**
+     * Initializes the state node based on a compiled layout.
+     */
+    public StateNode(StateLayout layout) {
+        Metrics.count(Metrics.Counter.NODE_CREATED);
+        this.layout = layout;
+        devices = new DeviceInstance[layout.deviceCount()];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = layout.newDeviceInstance(i);
         }
-        // Add key-value pairs contained in environment variables.
-        Set<EnvDynamics> dynamicsSet = EnvPool.envDynamicsSet;
-        for (EnvDynamics envDynamics : dynamicsSet) {
-            envInstances.put(formatString(envDynamics.getVariableName()), new EnvInstance(envDynamics));
+        envs = new EnvInstance[layout.envCount()];
+        for (int i = 0; i < envs.length; i++) {
+            envs[i] = layout.newEnvInstance(i);
         }
+        deviceShare = new byte[devices.length];
+        envShare = new byte[envs.length];
+        envValues = unparsed(envs.length);
+        slotHashes = new long[devices.length + envs.length];
+        staleHashes = new long[(slotHashes.length + 63) >>> 6];
+        markStale(0, slotHashes.length);
+        dirtySlots = new long[staleHashes.length];
+        stepId = stepIds.getAndIncrement();
+    }
+
+    /**
+     * Returns the device instances keyed by device ID, for reading only: they may be shared with other nodes.
+     * Write through {@link #setDeviceVar}, {@link #setVal} or an instance from {@link #mutableDeviceInstance}.
+     */
+    public Map<String, DeviceInstance> getDeviceInstances() {
+        Map<String, DeviceInstance> deviceInstances = new LinkedHashMap<>();
+        for (int i = 0; i < devices.length; i++) {
+            deviceInstances.put(layout.deviceId(i), devices[i]);
+        }
+        return Collections.unmodifiableMap(deviceInstances);
+    }
+
+    /**
+     * Returns the environment variable instances keyed by the formatted variable name, for reading only, as
+     * {@link #getDeviceInstances} does.
+     */
+    public Map<String, EnvInstance> getEnvInstances() {
+        Map<String, EnvInstance> envInstances = new LinkedHashMap<>();
+        for (int i = 0; i < envs.length; i++) {
+            envInstances.put(layout.envName(i), envs[i]);
+        }
+        return Collections.unmodifiableMap(envInstances);
     }
 
     /**
@@ -64,8 +256,11 @@ public class StateNode implements Cloneable{
     public String findVar(String id, String variable, Boolean checkTrust, Boolean checkPrivacy) {
         DeviceInstance tempVar;
         String val = null;
+        Metrics.count(Metrics.Counter.FIND_VAR);
         variable = formatString(variable);
-        if ((tempVar = findDeviceInstance(id)) != null) {
+        int slot = layout.deviceSlot(id);
+        if (slot >= 0) {
+            tempVar = devices[slot];
             if (checkTrust | checkPrivacy) {
                 if (checkTrust) {
                     val = tempVar.findTrust(variable);
@@ -76,6 +271,9 @@ public class StateNode implements Cloneable{
                 val = findVarSub(variable, tempVar);
             }
         }
+        if (val == null) {
+            Metrics.count(Metrics.Counter.FIND_VAR_MISS);
+        }
         return val;
     }
 
@@ -97,8 +295,9 @@ public class StateNode implements Cloneable{
                 val = String.valueOf(deviceInstance.isAttacked());
                 break;
             default:
-                if (findEnvInstance(variable) != null) {
-                    val = findEnvInstance(variable).getVariableVal();
+                int envSlot = layout.envSlot(variable);
+                if (envSlot >= 0) {
+                    val = envs[envSlot].getVariableVal();
                 } else if ((val = deviceInstance.findVarInModes(variable)) == null){
                     val = deviceInstance.findVarInInternalVars(variable);
                 }
@@ -107,22 +306,370 @@ public class StateNode implements Cloneable{
     }
 
     /**
-     * Find the device instance based on the device ID.
+     * Reads the value at a resolved location, without any string normalization or hashing.
+     * @param slot The location resolved by {@link StateLayout#slotOf}.
+     * @return The value retrieved, or null if there is none.
+     */
+    public String findVar(VarSlot slot) {
+        DeviceInstance deviceInstance;
+        String val;
+        Metrics.count(Metrics.Counter.FIND_VAR);
+        switch (slot.kind) {
+            case VarSlot.STATE_TRUST:
+                return devices[slot.device].findTrust(slot.variable);
+            case VarSlot.STATE_PRIVACY:
+                return devices[slot.device].findPrivacy(slot.variable);
+            case VarSlot.TRUST:
+                return devices[slot.device].getTrust();
+            case VarSlot.PRIVACY:
+                return devices[slot.device].getPrivacy();
+            case VarSlot.ATTACK:
+                return String.valueOf(devices[slot.device].isAttacked());
+            case VarSlot.ENV:
+                return envs[slot.env].getVariableVal();
+            case VarSlot.DEVICE_VAR:
+                deviceInstance = devices[slot.device];
+                if ((val = deviceInstance.findVarInModes(slot.variable)) == null) {
+                    val = deviceInstance.findVarInInternalVars(slot.variable);
+                }
+                if (val == null) {
+                    Metrics.count(Metrics.Counter.FIND_VAR_MISS);
+                }
+                return val;
+            default:
+                Metrics.count(Metrics.Counter.FIND_VAR_MISS);
+                return null;
+        }
+    }
+
+    public void setGraphVer(String graphVer) {
+        this.graphVer = graphVer;
+        this.graphVerId = null;
+    }
+
+    /**
+     * Returns the 64-bit fingerprint of the state together with graphVer: equal states in the same monitor
+     * vertex have equal fingerprints. Env values and rates are hashed over their characters into 64 bits, but a
+     * device instance only contributes its 32-bit hashCode, so two states differing in a device collide with
+     * probability about 2^-32.
+     */
+    public long fingerprint() {
+        return stateFingerprint() ^ mix(0x6a09e667f3bcc909L + (graphVer == null ? 0 : graphVer.hashCode()));
+    }
+
+    /**
+     * Returns the 64-bit fingerprint of the device and env instances only.
+     */
+    public long stateFingerprint() {
+        for (int w = 0; w < staleHashes.length; w++) {
+            long word = staleHashes[w];
+            while (word != 0) {
+                rehash((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return stateHash;
+    }
+
+    /**
+     * Records in the trace the step from the previous node of the path to this node: the monitor vertex it
+     * moved between, and the device slots whose state it changed, each as its hashes before and after.
+     * Env values drift at every step, so they are left out.
+     * @param preNode The previous node, or null for the first node of the path.
+     */
+    public void cover(CoverageMap.Sink trace, StateNode preNode) {
+        trace.hit(CoverageMap.VERTEX_EDGE, preNode == null || preNode.graphVer == null ? 0 : preNode.graphVer.hashCode(),
+                graphVer == null ? 0 : graphVer.hashCode());
+        stateFingerprint(); // Brings the slot hashes up to date
+        boolean compare = preNode != null && preNode.layout == layout;
+        if (compare)
+            preNode.stateFingerprint();
+        for (int i = 0; i < devices.length; i++) {
+            long before = compare ? preNode.slotHashes[i] : 0;
+            if (before != slotHashes[i])
+                trace.hit(CoverageMap.DEVICE_STATE, i * 0x9e3779b97f4a7c15L ^ before, slotHashes[i]);
+        }
+    }
+
+    public long getStepId() {
+        return stepId;
+    }
+
+    /**
+     * Returns whether the node was created by stepping the node with the given id, or is a clone of such a node.
+     */
+    public boolean steppedFrom(long parentStepId) {
+        return this.parentStepId >= 0 && this.parentStepId == parentStepId;
+    }
+
+    /**
+     * Returns whether the node was stepped from another node, so that its dirty slots tell what the step changed.
+     */
+    public boolean isStepped() {
+        return parentStepId >= 0;
+    }
+
+    /**
+     * Returns whether the variable at the location may have changed since the node was stepped from its parent.
+     */
+    public boolean isDirty(VarSlot slot) {
+        switch (slot.kind) {
+            case VarSlot.MISSING:
+                return false;
+            case VarSlot.ENV:
+                return isDirty(devices.length + slot.env);
+            default:
+                return isDirty(slot.device);
+        }
+    }
+
+    /**
+     * Returns whether the slot, devices first and then envs, may have changed since the node was stepped.
+     */
+    public boolean isDirty(int index) {
+        return (dirtySlots[index >>> 6] & 1L << index) != 0;
+    }
+
+    /**
+     * Returns the first dirty slot at or after the index, devices first and then envs, or -1 if there is none.
+     */
+    public int nextDirtySlot(int index) {
+        int w = index >>> 6;
+        if (w >= dirtySlots.length) {
+            return -1;
+        }
+        long word = dirtySlots[w] & -1L << index;
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == dirtySlots.length) {
+                return -1;
+            }
+            word = dirtySlots[w];
+        }
+    }
+
+    private void markDirty(int index) {
+        dirtySlots[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Marks the slots in [from, to) stale, taking their hashes out of the state hash.
+     */
+    private void markStale(int from, int to) {
+        for (int i = from; i < to; i++) {
+            long bit = 1L << i;
+            if ((staleHashes[i >>> 6] & bit) == 0) {
+                staleHashes[i >>> 6] |= bit;
+                stateHash ^= slotHashes[i];
+            }
+        }
+    }
+
+    /**
+     * Hashes the slot again from its instance and puts it back into the state hash.
+     */
+    private void rehash(int i) {
+        long content;
+        if (i < devices.length) {
+            content = devices[i].hashCode();
+        } else {
+            EnvInstance env = envs[i - devices.length];
+            content = hash64(env.getChangeRate(), hash64(env.getVariableVal(), 0x510e527fade682d1L));
+        }
+        long hash = mix(content + 0x9e3779b97f4a7c15L * (i + 1));
+        long bit = 1L << i;
+        if ((staleHashes[i >>> 6] & bit) != 0) {
+            staleHashes[i >>> 6] &= ~bit;
+        } else {
+            stateHash ^= slotHashes[i];
+        }
+        slotHashes[i] = hash;
+        stateHash ^= hash;
+    }
+
+    /**
+     * Hashes the characters of the string into the running hash, FNV-1a style, with the length so that the
+     * boundary between two strings counts, and null apart from every string.
+     */
+    private static long hash64(String value, long h) {
+        if (value == null)
+            return mix(h ^ 0x1f83d9abfb41bd6bL);
+        for (int k = 0; k < value.length(); k++)
+            h = (h ^ value.charAt(k)) * 0x100000001b3L;
+        return mix(h + value.length());
+    }
+
+    /**
+     * The SplitMix64 finalizer, spreading the slot and content over all 64 bits.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the id of graphVer cached by the given table, or -1 if it has not cached one.
+     */
+    public int cachedGraphVerId(Object table) {
+        GraphVerId cached = graphVerId;
+        return cached != null && cached.table == table ? cached.id : -1;
+    }
+
+    public void cacheGraphVerId(Object table, int id) {
+        graphVerId = new GraphVerId(table, id);
+    }
+
+    /**
+     * Returns the value of the environment variable in the slot as a double, NaN if it is not a number.
+     */
+    public double envValue(int slot) {
+        long bits = envValues.get(slot);
+        if (bits == UNPARSED) {
+            double value = toDouble(envs[slot].getVariableVal());
+            envValues.lazySet(slot, Double.doubleToRawLongBits(value));
+            return value;
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Returns the change rate of the environment variable in the slot, NaN if it is not a number.
+     */
+    public double envRate(int slot) {
+        return toDouble(envs[slot].getChangeRate());
+    }
+
+    /**
+     * Returns whether the device instance in the slot is attacked.
+     */
+    public boolean isDeviceAttacked(int slot) {
+        return devices[slot].isAttacked();
+    }
+
+    /**
+     * Find the device instance based on the device ID, for reading only: it may be shared with other nodes.
      * @param variableName The device ID.
-     * @return The device instance.
+     * @return The device instance, or null if the layout has no such device.
      */
-    public DeviceInstance findDeviceInstance(String variableName) {
-       return this.deviceInstances.get(variableName);
+    public DeviceInstance getDeviceInstance(String variableName) {
+        int slot = layout.deviceSlot(variableName);
+        return slot < 0 ? null : devices[slot];
     }
 
+    /**
+     * Find the environment variable instance based on the variable name, for reading only, as
+     * {@link #getDeviceInstance} does.
+     * @param variableName The variable name.
+     * @return The environment variable instance, or null if the layout has no such variable.
+     */
+    public EnvInstance getEnvInstance(String variableName) {
+        int slot = layout.envSlot(variableName);
+        return slot < 0 ? null : envs[slot];
+    }
+
+    /**
+     * Find the device instance based on the device ID, copying it first if it is still shared.
+     * The returned instance is owned by this node, so it may be modified by the caller; the node counts it as
+     * written.
+     * @param variableName The device ID.
+     * @return The device instance.
+     */
+    public DeviceInstance mutableDeviceInstance(String variableName) {
+        int slot = layout.deviceSlot(variableName);
+        return slot < 0 ? null : mutableDevice(slot);
+    }
 
     /**
-     * Find the environment variable instance based on the variable name.
+     * Find the environment variable instance based on the variable name, copying it first if it is still shared.
+     * The returned instance is owned by this node, so it may be modified by the caller; the node counts it as
+     * written.
      * @param variableName The variable name.
      * @return The environment variable instance.
      */
+    public EnvInstance mutableEnvInstance(String variableName) {
+        int slot = layout.envSlot(variableName);
+        return slot < 0 ? null : mutableEnv(slot);
+    }
+
+    /**
+     * @deprecated Use {@link #getDeviceInstance} to read and {@link #mutableDeviceInstance} to write.
+     */
+    @Deprecated
+    public DeviceInstance findDeviceInstance(String variableName) {
+        return mutableDeviceInstance(variableName);
+    }
+
+    /**
+     * @deprecated Use {@link #getEnvInstance} to read and {@link #mutableEnvInstance} to write.
+     */
+    @Deprecated
     public EnvInstance findEnvInstance(String variableName) {
-        return this.envInstances.get(formatString(variableName));
+        return mutableEnvInstance(variableName);
+    }
+
+    /**
+     * Returns the device instance in the slot, copying it first if it is still shared.
+     */
+    private DeviceInstance mutableDevice(int slot) {
+        modCount++;
+        markStale(slot, slot + 1);
+        markDirty(slot);
+        switch (deviceShare[slot]) {
+            case SHARED:
+                Metrics.count(Metrics.Counter.INSTANCE_COPY);
+                devices[slot] = (DeviceInstance) devices[slot].clone();
+                break;
+            case SHARED_NEXT:
+                Metrics.count(Metrics.Counter.INSTANCE_COPY);
+                devices[slot] = devices[slot].nextClone();
+                break;
+            default:
+                return devices[slot];
+        }
+        deviceShare[slot] = OWNED;
+        return devices[slot];
+    }
+
+    /**
+     * Returns the env instance in the slot, copying it first if it is still shared.
+     */
+    private EnvInstance mutableEnv(int slot) {
+        modCount++;
+        markStale(devices.length + slot, devices.length + slot + 1);
+        markDirty(devices.length + slot);
+        if (envShare[slot] != OWNED) {
+            Metrics.count(Metrics.Counter.INSTANCE_COPY);
+            envs[slot] = (EnvInstance) envs[slot].clone();
+            envShare[slot] = OWNED;
+        }
+        // The instance may be written by the caller, parse its value again on next read.
+        envValues.set(slot, UNPARSED);
+        return envs[slot];
+    }
+
+    /**
+     * Returns the slot of an instance handed in by the caller, or -1 if it is not in this node.
+     */
+    private int deviceSlotOf(DeviceInstance deviceInstance) {
+        int slot = layout.deviceSlot(deviceInstance.getDeviceId());
+        if (slot >= 0 && devices[slot] == deviceInstance) {
+            return slot;
+        }
+        for (int i = 0; i < devices.length; i++) {
+            if (devices[i] == deviceInstance) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int envSlotOf(EnvInstance envInstance) {
+        EnvDynamics dynamics = envInstance.getEnvDynamics();
+        int slot = dynamics == null ? -1 : layout.envSlot(dynamics.getVariableName());
+        return slot >= 0 && envs[slot] == envInstance ? slot : -1;
     }
 
     /**
@@ -133,9 +680,19 @@ public class StateNode implements Cloneable{
      */
     public void setVal(String id, OperationType op, String variableVal) {
         if (op instanceof EnvOperationType) {
-            setDynamicsVar(findEnvInstance(id), (EnvOperationType)op, variableVal);
+            int slot = layout.envSlot(id);
+            if (slot >= 0) {
+                applyDynamicsVar(mutableEnv(slot), (EnvOperationType)op, variableVal);
+                rehash(devices.length + slot);
+                record(StateJournal.SET_ENV, slot, ((EnvOperationType)op).ordinal(), null, variableVal);
+            }
         } else if (op instanceof DeviceOperationType){
-            setDeviceVar(deviceInstances.get(id), (DeviceOperationType)op, variableVal);
+            int slot = layout.deviceSlot(id);
+            if (slot >= 0) {
+                applyDeviceVar(mutableDevice(slot), (DeviceOperationType)op, variableVal);
+                rehash(slot);
+                record(StateJournal.SET_DEVICE, slot, ((DeviceOperationType)op).ordinal(), null, variableVal);
+            }
         }
     }
 
@@ -143,6 +700,18 @@ public class StateNode implements Cloneable{
      * Set the value of a dynamic variable.
      */
     public void setDynamicsVar(EnvInstance envInstance, EnvOperationType op, String variableVal) {
+        // An instance of this node is copied first if it is still shared.
+        int slot = envSlotOf(envInstance);
+        if (slot >= 0) {
+            applyDynamicsVar(mutableEnv(slot), op, variableVal);
+            rehash(devices.length + slot);
+            record(StateJournal.SET_ENV, slot, op.ordinal(), null, variableVal);
+        } else {
+            applyDynamicsVar(envInstance, op, variableVal);
+        }
+    }
+
+    private void applyDynamicsVar(EnvInstance envInstance, EnvOperationType op, String variableVal) {
         switch (op) {
             case ChangeRate:
                 envInstance.setChangeRate(variableVal);
@@ -159,6 +728,17 @@ public class StateNode implements Cloneable{
      * Set the value of a device attribute.
      */
     public void setDeviceVar(DeviceInstance deviceInstance, DeviceOperationType op, String variableVal) {
+        int slot = deviceSlotOf(deviceInstance);
+        if (slot >= 0) {
+            applyDeviceVar(mutableDevice(slot), op, variableVal);
+            rehash(slot);
+            record(StateJournal.SET_DEVICE, slot, op.ordinal(), null, variableVal);
+        } else {
+            applyDeviceVar(deviceInstance, op, variableVal);
+        }
+    }
+
+    private void applyDeviceVar(DeviceInstance deviceInstance, DeviceOperationType op, String variableVal) {
         switch (op) {
             case WorkingState:
                 deviceInstance.setWorkingState(variableVal);
@@ -184,10 +764,11 @@ public class StateNode implements Cloneable{
      * Set the detailed value concerning trust or privacy of the devices' states.
      */
     public void setStateDetail(String id, String variableName, DeviceOperationType op, String variableVal) {
-        if (deviceInstances.containsKey(id)) {
-            DeviceInstance deviceInstance = deviceInstances.get(id);
-            String state = DevicePool.findEndState(deviceInstance.getDeviceId(), variableName);
+        int slot = layout.deviceSlot(id);
+        if (slot >= 0) {
+            String state = DevicePool.findEndState(devices[slot].getDeviceId(), variableName);
             if (state != null && !state.isEmpty()) {
+                DeviceInstance deviceInstance = mutableDevice(slot);
                 switch (op) {
                     case Trust:
                         deviceInstance.changeStateTrust(state, variableVal);
@@ -198,6 +779,8 @@ public class StateNode implements Cloneable{
                     default:
                         // In case the operation or variable do not exist.
                 }
+                rehash(slot);
+                record(StateJournal.STATE_DETAIL, slot, op.ordinal(), variableName, variableVal);
             }
         }
     }
@@ -213,17 +796,7 @@ public class StateNode implements Cloneable{
      * Receives a condition and makes a judgment based on its contents and the current state.
      */
     public boolean judgeCond(Condition condition) {
-        String targetId = condition.getDeviceName();
-        String varName = condition.getDeviceVar();
-        String varVal = condition.getVariableVal();
-        Compare compare = condition.getCompare();
-        String ans = findVar(targetId, varName, condition.getCheckTrust(), condition.getCheckPrivacy());
-        if (ans != null && !ans.isEmpty()) {
-            return compare(ans, varVal, compare);
-        } else {
-            // illegal input
-            return false;
-        }
+        return layout.evaluatorOf(condition).judge(this);
     }
 
     /**
@@ -232,37 +805,7 @@ public class StateNode implements Cloneable{
      * @param preNode The previous state node.
      */
     public boolean judgeContinueCond(Condition condition, StateNode preNode) {
-        String targetId = condition.getDeviceName();
-        String varName = condition.getDeviceVar();
-        String varVal = condition.getVariableVal();
-        Compare compare = condition.getCompare();
-        String ans = findVar(targetId, varName, condition.getCheckTrust(), condition.getCheckPrivacy());
-
-        if (ans != null && !ans.isEmpty()) {
-            String ansPre = preNode.findVar(targetId, varName, condition.getCheckTrust(), condition.getCheckPrivacy());
-            boolean curCom = compare(ans, varVal, compare);
-            if (curCom) {
-                return true;
-            } else {
-                try {
-                    return judgeCondEqual(ans, ansPre, varVal, compare);
-                } catch (Exception ignored) {
-                    // Avoid non-double types, in which case continuous judgment is not required
-                }
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Determine whether the value between two points in a continuous node can reach, considering only double types.
-     */
-    private boolean judgeCondEqual(String val, String valPre, String varVal, Compare compare) {
-        double dCur = Double.parseDouble(val);
-        double dPre = Double.parseDouble(valPre);
-        double dTarget = Double.parseDouble(varVal);
-        return (compare.equals(Compare.EQUAL)
-                && (dCur > dTarget && dPre < dTarget || dCur < dTarget && dPre > dTarget));
+        return layout.evaluatorOf(condition).judgeContinue(this, preNode);
     }
 
     /**
@@ -276,48 +819,183 @@ public class StateNode implements Cloneable{
         String target = trigger.getValue();
         String val;
         Compare relation = Compare.value(trigger.getRelation());
-        if (envInstances.containsKey(attribution.toLowerCase()))
-            val = findEnvInstance(attribution).getVariableVal();
+        int envSlot = layout.envSlot(attribution.toLowerCase());
+        if (envSlot >= 0)
+            val = envs[envSlot].getVariableVal();
         else
             val = deviceInstance.findVarInModes(attribution);
         return compare(target, val, relation);
     }
 
+    /**
+     * Returns the value a trigger on the attribute reads, as {@link #judgeTrigger} looks it up: the environment
+     * variable in the env slot if there is one, else the attribute in the modes of the device in the slot.
+     */
+    String triggerValue(int deviceSlot, int envSlot, String attribution) {
+        if (envSlot >= 0)
+            return envs[envSlot].getVariableVal();
+        return deviceSlot >= 0 ? devices[deviceSlot].findVarInModes(attribution) : null;
+    }
+
     /**
      * Returns a clone of the next state node.
+     * Device instances are shared with this node until one of them is written; env instances advance
+     * with the step, so they are always copied.
      */
     public StateNode nextClone() {
         try {
+            Metrics.count(Metrics.Counter.NEXT_CLONE);
             StateNode clone = (StateNode) super.clone();
-            preClone(clone);
-            for (String deviceId : deviceInstances.keySet())
-                clone.deviceInstances.put(deviceId, deviceInstances.get(deviceId).nextClone());
-            for (String dynamicsId : envInstances.keySet())
-                clone.envInstances.put(dynamicsId, envInstances.get(dynamicsId).nextClone());
+            preClone(clone, false);
+            Arrays.fill(clone.deviceShare, SHARED_NEXT);
+            clone.dirtySlots = new long[dirtySlots.length];
+            clone.parentStepId = stepId;
+            for (int i = 0; i < envs.length; i++) {
+                clone.envs[i] = envs[i].nextClone();
+                // Only the env values the step moved are dirty.
+                if (!Objects.equals(clone.envs[i].getVariableVal(), envs[i].getVariableVal()))
+                    clone.markDirty(devices.length + i);
+            }
+            clone.markStale(devices.length, devices.length + envs.length);
+            clone.record(StateJournal.STEP, -1, 0, null, null);
             return clone;
         } catch (Exception e) {
             return null;
         }
     }
 
+    /**
+     * Returns a clone of the state node which shares every instance with it until it is written.
+     */
     @Override
     public Object clone() {
         try {
+            Metrics.count(Metrics.Counter.CLONE);
             StateNode clone = (StateNode) super.clone();
-            preClone(clone);
-            for (String deviceId : deviceInstances.keySet())
-                clone.deviceInstances.put(deviceId, (DeviceInstance) deviceInstances.get(deviceId).clone());
-            for (String dynamicsId : envInstances.keySet())
-                clone.envInstances.put(dynamicsId, (EnvInstance) envInstances.get(dynamicsId).clone());
+            preClone(clone, true);
+            System.arraycopy(deviceShare, 0, clone.deviceShare, 0, deviceShare.length);
+            System.arraycopy(envShare, 0, clone.envShare, 0, envShare.length);
+            clone.dirtySlots = dirtySlots.clone();
             return clone;
         } catch (Exception e) {
             return null;
         }
     }
 
-    private void preClone(StateNode clone) {
-        clone.deviceInstances = new HashMap<>();
-        clone.envInstances = new HashMap<>();
+    private void preClone(StateNode clone, boolean shareEnvs) {
+        // From now on, the instances owned by this node are shared with the clone.
+        for (int i = 0; i < deviceShare.length; i++)
+            if (deviceShare[i] == OWNED) deviceShare[i] = SHARED;
+        if (shareEnvs) {
+            for (int i = 0; i < envShare.length; i++)
+                if (envShare[i] == OWNED) envShare[i] = SHARED;
+        }
+        clone.devices = devices.clone();
+        clone.envs = envs.clone();
+        clone.deviceShare = new byte[devices.length];
+        clone.envShare = new byte[envs.length];
+        if (shareEnvs) {
+            clone.envValues = new AtomicLongArray(envs.length);
+            for (int i = 0; i < envs.length; i++) {
+                clone.envValues.lazySet(i, envValues.get(i));
+            }
+        } else {
+            clone.envValues = unparsed(envs.length);
+        }
+        clone.slotHashes = slotHashes.clone();
+        clone.staleHashes = staleHashes.clone();
+        clone.stepId = stepIds.getAndIncrement();
         clone.graphVer = this.graphVer;
     }
+
+    /**
+     * Records the writes made from now on, by this node and the nodes cloned from it, so that they can be
+     * encoded. A node written before cannot be rebuilt from its journal, so it is not encoded.
+     */
+    public void startJournal() {
+        journaling = true;
+    }
+
+    boolean journaling() {
+        return journaling;
+    }
+
+    private static AtomicLongArray unparsed(int length) {
+        AtomicLongArray values = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            values.lazySet(i, UNPARSED);
+        }
+        return values;
+    }
+
+    StateJournal journal() {
+        return journal;
+    }
+
+    /**
+     * Replaces the journal by one which rebuilds the same state, e.g. a compacted one.
+     */
+    void rebase(StateJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the instance in the slot for reading only; it may be shared with other nodes.
+     */
+    DeviceInstance peekDevice(int slot) {
+        return devices[slot];
+    }
+
+    EnvInstance peekEnv(int slot) {
+        return envs[slot];
+    }
+
+    private void record(byte kind, int slot, int op, String variableName, String value) {
+        if (journaling) {
+            journal = new StateJournal(journal, kind, slot, op, variableName, value);
+        }
+    }
+
+    /**
+     * Replays a write recorded in a journal on this node.
+     * @return The node the write leads to: a new node for a step, this node otherwise.
+     */
+    StateNode replay(byte kind, int slot, byte op, String variableName, String value) {
+        switch (kind) {
+            case StateJournal.STEP:
+                return nextClone();
+            case StateJournal.SET_ENV:
+                setVal(layout.envName(slot), EnvOperationType.values()[op], value);
+                return this;
+            case StateJournal.SET_DEVICE:
+                setVal(layout.deviceId(slot), DeviceOperationType.values()[op], value);
+                return this;
+            case StateJournal.STATE_DETAIL:
+                setStateDetail(layout.deviceId(slot), variableName, DeviceOperationType.values()[op], value);
+                return this;
+            default:
+                throw new IllegalArgumentException("Unknown journal entry " + kind);
+        }
+    }
+
+    /**
+     * Copies every instance that is still shared, which is what cloning cost before instances were shared.
+     * Only meant for measuring that cost against sharing.
+     */
+    public void materializeAll() {
+        for (int i = 0; i < devices.length; i++)
+            mutableDevice(i);
+        for (int i = 0; i < envs.length; i++)
+            mutableEnv(i);
+    }
+
+    private static final class GraphVerId {
+        private final Object table;
+        private final int id;
+
+        private GraphVerId(Object table, int id) {
+            this.table = table;
+            this.id = id;
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package Bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import Common.Device.Sub.Trigger;
+import Common.Enums.Type.EnvOperationType;
+import Common.Rule.Condition.Condition;
+import StatePath.StateNode;
+import StatePath.VarSlot;
+import StatePath.subState.DeviceInstance;
+
+/**
+ * Throughput of the state node operations a campaign performs on every step: construction, cloning, variable
+ * lookup and condition / trigger evaluation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateNodeBenchmark {
+    @Param({"4", "16", "64"})
+    public int deviceCount;
+
+    @Param({"8"})
+    public int envCount;
+
+    private BenchFixtures fixtures;
+    private StateNode node;
+    private StateNode preNode;
+    private String[] deviceIds;
+    private String[] envNames;
+    private VarSlot[] slots;
+    private Condition[] conditions;
+    private Trigger[] triggers;
+    private DeviceInstance deviceInstance;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixtures = BenchFixtures.install(deviceCount, envCount, 8, 3);
+        List<StateNode> path = fixtures.path(2, new SplittableRandom(1));
+        preNode = path.get(0);
+        node = path.get(1);
+        deviceIds = new String[fixtures.layout.deviceCount()];
+        for (int i = 0; i < deviceIds.length; i++) {
+            deviceIds[i] = fixtures.layout.deviceId(i);
+        }
+        envNames = new String[fixtures.layout.envCount()];
+        for (int i = 0; i < envNames.length; i++) {
+            envNames[i] = fixtures.layout.envName(i);
+        }
+        conditions = fixtures.conditions.toArray(new Condition[0]);
+        slots = new VarSlot[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            slots[i] = fixtures.layout.slotOf(conditions[i]);
+        }
+        triggers = fixtures.triggers.toArray(new Trigger[0]);
+        deviceInstance = node.getDeviceInstance(deviceIds[0]);
+    }
+
+    private int next(int bound) {
+        return (next++ & Integer.MAX_VALUE) % bound;
+    }
+
+    @Benchmark
+    public StateNode construct() {
+        return new StateNode(fixtures.layout);
+    }
+
+    @Benchmark
+    public StateNode nextClone() {
+        return node.nextClone();
+    }
+
+    @Benchmark
+    public Object cloneNode() {
+        return node.clone();
+    }
+
+    /**
+     * A step as the fuzzer takes it: clone the node, then change one variable.
+     */
+    @Benchmark
+    public StateNode nextCloneAndSet() {
+        StateNode clone = node.nextClone();
+        clone.setVal(envNames[next(envNames.length)], EnvOperationType.Value, "42");
+        return clone;
+    }
+
+    @Benchmark
+    public String findVar() {
+        int i = next(conditions.length);
+        Condition condition = conditions[i];
+        return node.findVar(condition.getDeviceName(), condition.getDeviceVar(),
+                condition.getCheckTrust(), condition.getCheckPrivacy());
+    }
+
+    @Benchmark
+    public String findVarBySlot() {
+        return node.findVar(slots[next(slots.length)]);
+    }
+
+    @Benchmark
+    public void judgeCond(Blackhole blackhole) {
+        for (Condition condition : conditions) {
+            blackhole.consume(node.judgeCond(condition));
+        }
+    }
+
+    @Benchmark
+    public void judgeContinueCond(Blackhole blackhole) {
+        for (Condition condition : conditions) {
+            blackhole.consume(node.judgeContinueCond(condition, preNode));
+        }
+    }
+
+    @Benchmark
+    public void judgeTrigger(Blackhole blackhole) {
+        for (Trigger trigger : triggers) {
+            blackhole.consume(node.judgeTrigger(deviceInstance, trigger));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package StatePath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An append-only, memory-mapped file of state paths, for keeping only the hot candidates on the heap during
+ * long campaigns and streaming the cold ones back when they are needed.
+ * Paths are stored in the {@link StateCodec} encoding; a path which cannot be rebuilt from it stays on the heap.
+ * Appending shall not run concurrently with the scoring of the paths being appended.
+ */
+public class TraceStore implements Closeable {
+    private static final int MAGIC = 0x54524331; // TRC1
+    private static final int HEADER_SIZE = 16;
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final StateLayout layout;
+
+    /**
+     * The mapped segments and their offsets in the file. A record never spans two segments; a zero length
+     * after the last record of a segment moves on to the next one.
+     */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<Long> segmentStarts = new ArrayList<>();
+
+    /**
+     * The offset in the file where the next record is appended.
+     */
+    private long end;
+    private int pathCount;
+
+    /**
+     * Creates the store, replacing the file if it exists.
+     */
+    public TraceStore(Path file, StateLayout layout) throws IOException {
+        this.layout = layout;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer header = map(0, SEGMENT_SIZE);
+        header.putInt(MAGIC).putInt(layout.deviceCount()).putInt(layout.envCount()).putInt(0);
+        end = HEADER_SIZE;
+    }
+
+    public synchronized int pathCount() {
+        return pathCount;
+    }
+
+    /**
+     * Returns the number of bytes used in the file.
+     */
+    public synchronized long size() {
+        return end;
+    }
+
+    /**
+     * Appends the path to the file.
+     * @return The offset of the path in the file, or -1 if it cannot be rebuilt from its journal.
+     */
+    public long append(StatePath statePath) throws IOException {
+        byte[] record = StateCodec.encodePath(statePath.getStateNodes(), layout);
+        return record == null ? -1 : write(record);
+    }
+
+    /**
+     * Appends every path but the hotCapacity closest ones, and removes the appended paths from the list.
+     * @param statePaths The candidate paths, e.g. those of the core.
+     * @param dists The distance of each path, as scored by the last election.
+     * @return The paths moved to the file.
+     */
+    public List<StatePath> spillCold(List<StatePath> statePaths, double[] dists, int hotCapacity) throws IOException {
+        if (statePaths.size() <= hotCapacity) {
+            return Collections.emptyList();
+        }
+        Integer[] order = new Integer[statePaths.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> dists[i]));
+        boolean[] spilled = new boolean[order.length];
+        List<StatePath> cold = new ArrayList<>();
+        for (int rank = Math.max(hotCapacity, 0); rank < order.length; rank++) {
+            if (append(statePaths.get(order[rank])) >= 0) {
+                spilled[order[rank]] = true;
+                cold.add(statePaths.get(order[rank]));
+            }
+        }
+        List<StatePath> hot = new ArrayList<>(statePaths.size() - cold.size());
+        for (int i = 0; i < spilled.length; i++) {
+            if (!spilled[i]) {
+                hot.add(statePaths.get(i));
+            }
+        }
+        statePaths.clear();
+        statePaths.addAll(hot);
+        // The hot paths will be encoded again, but no longer need the lineage of the cold ones.
+        for (StatePath statePath : hot) {
+            StateCodec.compact(statePath.getStateNodes());
+        }
+        return cold;
+    }
+
+    /**
+     * Reads back the nodes of the path at the offset.
+     */
+    public List<StateNode> read(long offset) {
+        return StateCodec.decodePath(recordAt(offset), layout);
+    }
+
+    /**
+     * Returns a cursor over the paths in the file, in the order they were appended.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments.clear();
+        channel.close();
+    }
+
+    public final class Cursor {
+        private long position = HEADER_SIZE;
+        private long offset = -1;
+
+        public boolean hasNext() {
+            synchronized (TraceStore.this) {
+                position = skipPadding(position);
+                return position < end;
+            }
+        }
+
+        public List<StateNode> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ByteBuffer record = recordAt(position);
+            offset = position;
+            position += Integer.BYTES + record.remaining();
+            return StateCodec.decodePath(record, layout);
+        }
+
+        /**
+         * Returns the offset of the path last returned by {@link #next()}.
+         */
+        public long offset() {
+            return offset;
+        }
+    }
+
+    private synchronized long write(byte[] record) throws IOException {
+        int segment = segments.size() - 1;
+        long segmentEnd = segmentStarts.get(segment) + segments.get(segment).capacity();
+        if (end + Integer.BYTES + record.length > segmentEnd) {
+            if (end + Integer.BYTES <= segmentEnd) {
+                buffer(end).putInt(0);
+            }
+            map(segmentEnd, Math.max(SEGMENT_SIZE, Integer.BYTES + record.length));
+            end = segmentEnd;
+        }
+        long offset = end;
+        ByteBuffer buffer = buffer(offset);
+        buffer.putInt(record.length).put(record);
+        end += Integer.BYTES + record.length;
+        pathCount++;
+        return offset;
+    }
+
+    private MappedByteBuffer map(long start, long size) throws IOException {
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        segments.add(segment);
+        segmentStarts.add(start);
+        return segment;
+    }
+
+    /**
+     * Returns a view of the mapped file positioned at the offset.
+     */
+    private ByteBuffer buffer(long offset) {
+        int segment = segments.size() - 1;
+        while (segmentStarts.get(segment) > offset) {
+            segment--;
+        }
+        ByteBuffer buffer = segments.get(segment).duplicate();
+        buffer.position((int) (offset - segmentStarts.get(segment)));
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the next record at or after the position, past the end of a segment if needed.
+     */
+    private long skipPadding(long position) {
+        for (int segment = 0; segment < segments.size(); segment++) {
+            long segmentEnd = segmentStarts.get(segment) + segments.get(segment).capacity();
+            if (position < segmentEnd) {
+                if (position < end && (position + Integer.BYTES > segmentEnd || buffer(position).getInt() == 0)) {
+                    return segmentEnd;
+                }
+                return position;
+            }
+        }
+        return position;
+    }
+
+    private synchronized ByteBuffer recordAt(long offset) {
+        ByteBuffer buffer = buffer(offset);
+        int length = buffer.getInt();
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        return record;
+    }
+}
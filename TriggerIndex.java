@@ -0,0 +1,243 @@
+package StatePath;
+
+import java.util.*;
+import Common.Device.Sub.Trigger;
+import Common.Enums.Compare;
+import Common.Rule.Condition.Condition;
+import Common.Rule.Rule;
+import Util.CoverageMap;
+import Util.Metrics;
+import static Common.Enums.Compare.compare;
+
+/**
+ * Dispatches the triggers of device transitions and the rules by the variables they watch, so that after a step
+ * only those registered on a variable the step changed are judged, and the cost of a step follows what changed
+ * rather than how many rules are installed.
+ * A trigger watches the environment variable named by its attribute if there is one, and otherwise the attribute
+ * of its own device, as in {@link StateNode#judgeTrigger}; a rule watches the variables read by its conditions.
+ * Entries on a variable are judged in the order they were registered.
+ */
+public final class TriggerIndex {
+    private final StateLayout layout;
+
+    /**
+     * Trigger id -> trigger, its watched slots and its parsed comparison.
+     */
+    private final List<Trigger> triggers = new ArrayList<>();
+    private final List<String> triggerDevices = new ArrayList<>();
+    private int[] triggerDeviceSlots = new int[8];
+    private int[] triggerEnvSlots = new int[8];
+    private Compare[] triggerRelations = new Compare[8];
+
+    /**
+     * Rule id -> rule and its compiled conditions.
+     */
+    private final List<Rule> rules = new ArrayList<>();
+    private final List<CondEvaluator[]> ruleConds = new ArrayList<>();
+
+    /**
+     * Slot (devices first, then envs) -> ids of the triggers and rules watching it, in registration order.
+     */
+    private final int[][] slotTriggers;
+    private final int[] slotTriggerCounts;
+    private final int[][] slotRules;
+    private final int[] slotRuleCounts;
+
+    public TriggerIndex(StateLayout layout) {
+        this.layout = layout;
+        int slots = layout.deviceCount() + layout.envCount();
+        slotTriggers = new int[slots][];
+        slotTriggerCounts = new int[slots];
+        slotRules = new int[slots][];
+        slotRuleCounts = new int[slots];
+    }
+
+    public StateLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Registers a trigger of a transition of the device.
+     * @return The id of the trigger, or -1 if it watches no variable of the layout, so no step can fire it.
+     */
+    public int addTrigger(String deviceId, Trigger trigger) {
+        int envSlot = layout.envSlot(trigger.getAttribute().toLowerCase());
+        int deviceSlot = layout.deviceSlot(deviceId);
+        int slot = envSlot >= 0 ? layout.deviceCount() + envSlot : deviceSlot;
+        if (slot < 0) {
+            return -1;
+        }
+        int id = triggers.size();
+        if (id == triggerDeviceSlots.length) {
+            triggerDeviceSlots = Arrays.copyOf(triggerDeviceSlots, id * 2);
+            triggerEnvSlots = Arrays.copyOf(triggerEnvSlots, id * 2);
+            triggerRelations = Arrays.copyOf(triggerRelations, id * 2);
+        }
+        triggers.add(trigger);
+        triggerDevices.add(deviceId);
+        triggerDeviceSlots[id] = deviceSlot;
+        triggerEnvSlots[id] = envSlot;
+        triggerRelations[id] = Compare.value(trigger.getRelation());
+        register(slotTriggers, slotTriggerCounts, slot, id);
+        return id;
+    }
+
+    /**
+     * Registers a rule under every variable its conditions read.
+     * @return The id of the rule, or -1 if none of its conditions reads a variable of the layout.
+     */
+    public int addRule(Rule rule) {
+        List<Condition> conditions = rule.getConditions();
+        CondEvaluator[] evaluators = new CondEvaluator[conditions.size()];
+        BitSet watched = new BitSet();
+        for (int i = 0; i < evaluators.length; i++) {
+            evaluators[i] = layout.evaluatorOf(conditions.get(i));
+            int slot = slotIndex(evaluators[i].getSlot());
+            if (slot >= 0) {
+                watched.set(slot);
+            }
+        }
+        if (watched.isEmpty()) {
+            return -1;
+        }
+        int id = rules.size();
+        rules.add(rule);
+        ruleConds.add(evaluators);
+        for (int slot = watched.nextSetBit(0); slot >= 0; slot = watched.nextSetBit(slot + 1)) {
+            register(slotRules, slotRuleCounts, slot, id);
+        }
+        return id;
+    }
+
+    /**
+     * Registers every rule of the rule chain, each once.
+     */
+    public void addRules(Map<Condition, List<Rule>> ruleChain) {
+        Set<Rule> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<Rule> predecessors : ruleChain.values()) {
+            for (Rule rule : predecessors) {
+                if (added.add(rule)) {
+                    addRule(rule);
+                }
+            }
+        }
+    }
+
+    public Trigger getTrigger(int id) {
+        return triggers.get(id);
+    }
+
+    public String getTriggerDevice(int id) {
+        return triggerDevices.get(id);
+    }
+
+    public Rule getRule(int id) {
+        return rules.get(id);
+    }
+
+    /**
+     * Judges the trigger on the node, as {@link StateNode#judgeTrigger} does with the device it was registered with.
+     */
+    public boolean judgeTrigger(StateNode stateNode, int id) {
+        Trigger trigger = triggers.get(id);
+        String val = stateNode.triggerValue(triggerDeviceSlots[id], triggerEnvSlots[id], trigger.getAttribute());
+        return compare(trigger.getValue(), val, triggerRelations[id]);
+    }
+
+    /**
+     * Returns whether every condition of the rule holds on the node.
+     */
+    public boolean judgeRule(StateNode stateNode, int id) {
+        for (CondEvaluator condition : ruleConds.get(id)) {
+            if (!condition.judge(stateNode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ids of the triggers that hold on the node among those watching a variable the step which
+     * created it changed, in slot order and then registration order. Every trigger is judged on a node which
+     * was not stepped, as then nothing tells what changed.
+     */
+    public int[] firedTriggers(StateNode stateNode) {
+        return firedTriggers(stateNode, null);
+    }
+
+    /**
+     * Returns the fired triggers as {@link #firedTriggers(StateNode)} does, recording each of them in the trace.
+     */
+    public int[] firedTriggers(StateNode stateNode, CoverageMap.Sink trace) {
+        return fired(stateNode, slotTriggers, slotTriggerCounts, triggers.size(), true, trace);
+    }
+
+    /**
+     * Returns the ids of the rules whose conditions all hold on the node among those watching a variable the
+     * step which created it changed, in the same order as {@link #firedTriggers}.
+     */
+    public int[] firedRules(StateNode stateNode) {
+        return firedRules(stateNode, null);
+    }
+
+    /**
+     * Returns the fired rules as {@link #firedRules(StateNode)} does, recording each of them in the trace.
+     */
+    public int[] firedRules(StateNode stateNode, CoverageMap.Sink trace) {
+        return fired(stateNode, slotRules, slotRuleCounts, rules.size(), false, trace);
+    }
+
+    private int[] fired(StateNode stateNode, int[][] index, int[] counts, int size, boolean trigger,
+                        CoverageMap.Sink trace) {
+        int[] result = new int[8];
+        int n = 0;
+        int judged = 0;
+        BitSet seen = new BitSet(size);
+        boolean all = !stateNode.isStepped();
+        int slot = all ? 0 : stateNode.nextDirtySlot(0);
+        while (slot >= 0 && slot < index.length) {
+            for (int i = 0; i < counts[slot]; i++) {
+                int id = index[slot][i];
+                if (seen.get(id)) {
+                    continue; // A rule watching several changed variables is judged once
+                }
+                seen.set(id);
+                judged++;
+                if (trigger ? judgeTrigger(stateNode, id) : judgeRule(stateNode, id)) {
+                    if (n == result.length) {
+                        result = Arrays.copyOf(result, n * 2);
+                    }
+                    result[n++] = id;
+                    if (trace != null) {
+                        trace.hit(trigger ? CoverageMap.TRIGGER : CoverageMap.RULE, id, 0);
+                    }
+                }
+            }
+            slot = all ? slot + 1 : stateNode.nextDirtySlot(slot + 1);
+        }
+        Metrics.count(Metrics.Counter.TRIGGER_JUDGED, judged);
+        Metrics.count(Metrics.Counter.TRIGGER_SKIPPED, size - judged);
+        return Arrays.copyOf(result, n);
+    }
+
+    private int slotIndex(VarSlot slot) {
+        switch (slot.kind) {
+            case VarSlot.MISSING:
+                return -1;
+            case VarSlot.ENV:
+                return layout.deviceCount() + slot.env;
+            default:
+                return slot.device;
+        }
+    }
+
+    private static void register(int[][] index, int[] counts, int slot, int id) {
+        int[] ids = index[slot];
+        if (ids == null) {
+            ids = index[slot] = new int[4];
+        } else if (counts[slot] == ids.length) {
+            ids = index[slot] = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[counts[slot]++] = id;
+    }
+}
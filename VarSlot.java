@@ -0,0 +1,68 @@
+package StatePath;
+
+/**
+ * The resolved location of a variable inside a state node, compiled once from a condition.
+ */
+public final class VarSlot {
+    /**
+     * Where the value is read from.
+     */
+    public static final int MISSING = 0;
+    public static final int STATE_TRUST = 1;
+    public static final int STATE_PRIVACY = 2;
+    public static final int TRUST = 3;
+    public static final int PRIVACY = 4;
+    public static final int ATTACK = 5;
+    public static final int ENV = 6;
+    public static final int DEVICE_VAR = 7;
+
+    /**
+     * Dense id of the variable within its layout.
+     */
+    final int id;
+
+    final int kind;
+
+    /**
+     * The device slot, or -1 if the device instance does not exist.
+     */
+    final int device;
+
+    /**
+     * The env slot of the variable name, or -1 if it is not an environment variable.
+     */
+    final int env;
+
+    /**
+     * The formatted variable name, kept for the look-ups delegated to the device instance.
+     */
+    final String variable;
+
+    VarSlot(int id, int kind, int device, int env, String variable) {
+        this.id = id;
+        this.kind = kind;
+        this.device = device;
+        this.env = env;
+        this.variable = variable;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public int getDevice() {
+        return device;
+    }
+
+    public int getEnv() {
+        return env;
+    }
+
+    public String getVariable() {
+        return variable;
+    }
+}
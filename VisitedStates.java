@@ -0,0 +1,136 @@
+package StatePath;
+
+import java.util.List;
+
+/**
+ * The set of (state, monitor vertex) pairs explored so far, keyed by {@link StateNode#fingerprint()}, so that the
+ * fuzzer can skip paths which only land in pairs it has already seen.
+ * Safe for concurrent use: the fingerprints are spread over lock-striped open-addressing tables of longs.
+ */
+public class VisitedStates {
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public VisitedStates() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records the node's state and vertex as visited.
+     * @return Whether it had not been visited before.
+     */
+    public boolean visit(StateNode stateNode) {
+        return add(stateNode.fingerprint());
+    }
+
+    public boolean isVisited(StateNode stateNode) {
+        return contains(stateNode.fingerprint());
+    }
+
+    /**
+     * Records every node of the path as visited.
+     * @return Whether the path reached at least one state and vertex not visited before.
+     */
+    public boolean visitPath(StatePath statePath) {
+        boolean fresh = false;
+        List<StateNode> stateNodes = statePath.getStateNodes();
+        for (StateNode stateNode : stateNodes) {
+            fresh |= visit(stateNode);
+        }
+        return fresh;
+    }
+
+    public boolean add(long fingerprint) {
+        long key = key(fingerprint);
+        return stripes[stripe(key)].add(key);
+    }
+
+    public boolean contains(long fingerprint) {
+        long key = key(fingerprint);
+        return stripes[stripe(key)].contains(key);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * 0 marks an empty entry, so it stands for itself as another value.
+     */
+    private static long key(long fingerprint) {
+        return fingerprint == 0 ? 0x9e3779b97f4a7c15L : fingerprint;
+    }
+
+    private static int stripe(long key) {
+        return (int) (key >>> 58) & (STRIPES - 1);
+    }
+
+    private static final class Stripe {
+        private long[] table = new long[64];
+        private int size;
+
+        synchronized boolean add(long key) {
+            if (insert(table, key)) {
+                if (++size * 2 > table.length) {
+                    long[] grown = new long[table.length * 2];
+                    for (long k : table) {
+                        if (k != 0) {
+                            insert(grown, k);
+                        }
+                    }
+                    table = grown;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean contains(long key) {
+            int mask = table.length - 1;
+            for (int i = (int) key & mask; table[i] != 0; i = (i + 1) & mask) {
+                if (table[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            table = new long[64];
+            size = 0;
+        }
+
+        /**
+         * Inserts the key by linear probing, returning false if it is already present.
+         */
+        private static boolean insert(long[] table, long key) {
+            int mask = table.length - 1;
+            int i = (int) key & mask;
+            while (table[i] != 0) {
+                if (table[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = key;
+            return true;
+        }
+    }
+}